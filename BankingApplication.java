@@ -1,89 +1,2345 @@
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.InputMismatchException;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Locale;
 import java.util.Scanner;
+import java.util.Spliterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+// Outcome of a balance operation
+enum TxResult {
+    OK,
+    INVALID_AMOUNT,
+    INSUFFICIENT_FUNDS,
+    ACCOUNT_NOT_FOUND,
+    SAME_ACCOUNT,
+    BALANCE_OVERFLOW
+}
+
+// Fixed-point money helpers
+// Amounts are whole minor units (paise/cents) held in a long, so postings never drift the way doubles do
+final class Money {
+    private Money() {
+    }
+
+    // Parses "125", "125.5" or "125.50" into minor units without going through double
+    static long parse(String text) {
+        String s = text.trim();
+        int i = 0;
+        boolean negative = s.startsWith("-");
+        if (negative) {
+            i++;
+        }
+        long units = 0;
+        int digits = 0;
+        try {
+            for (; i < s.length() && Character.isDigit(s.charAt(i)); i++, digits++) {
+                units = Math.addExact(Math.multiplyExact(units, 10), s.charAt(i) - '0');
+            }
+            long fraction = 0;
+            if (i < s.length() && s.charAt(i) == '.') {
+                int fractionDigits = 0;
+                for (i++; i < s.length() && Character.isDigit(s.charAt(i)); i++, fractionDigits++) {
+                    fraction = fraction * 10 + (s.charAt(i) - '0');
+                }
+                if (fractionDigits > 2) {
+                    throw new NumberFormatException("At most two decimal places allowed: " + text);
+                }
+                fraction = fractionDigits == 1 ? fraction * 10 : fraction;
+            }
+            if (digits == 0 || i != s.length()) {
+                throw new NumberFormatException("Not an amount: " + text);
+            }
+            long cents = Math.addExact(Math.multiplyExact(units, 100), fraction);
+            return negative ? -cents : cents;
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Amount too large: " + text);
+        }
+    }
+
+    static String format(long cents) {
+        StringBuilder sb = new StringBuilder(24);
+        if (cents < 0) {
+            sb.append('-');
+        }
+        long units = Math.abs(cents / 100);
+        int fraction = (int) Math.abs(cents % 100);
+        sb.append(units).append('.');
+        if (fraction < 10) {
+            sb.append('0');
+        }
+        return sb.append(fraction).toString();
+    }
+}
 
 // Creating Account Class
 class Account {
     private int accountNumber;
     private String accountHolderName;
-    private double balance;
+    private long balance; // in minor units, see Money
     private String email;
     private String phoneNumber;
+    StatementHistory.Log postings; // created on the first posting
+
+    // Make Constructor
+    public Account(int accountNumber, String accountHolderName, long balance, String email, String phoneNumber) {
+        this.accountNumber = accountNumber;
+        this.accountHolderName = accountHolderName;
+        this.balance = balance;
+        this.email = email;
+        this.phoneNumber = phoneNumber;
+    }
+
+    // Adding Deposit Method
+    // Account methods only change state and report a TxResult; printing is left to the caller.
+    // Accounts shared between threads must be updated through TransactionEngine.
+    public TxResult deposit(long amount) {
+        if (amount <= 0) {
+            return TxResult.INVALID_AMOUNT;
+        }
+        if (balance > Long.MAX_VALUE - amount) {
+            return TxResult.BALANCE_OVERFLOW;
+        }
+        balance += amount;
+        return TxResult.OK;
+    }
+
+    // Adding Withdraw Method
+    public TxResult withdraw(long amount) {
+        if (amount <= 0) {
+            return TxResult.INVALID_AMOUNT;
+        }
+        if (balance < amount) {
+            return TxResult.INSUFFICIENT_FUNDS;
+        }
+        balance -= amount;
+        return TxResult.OK;
+    }
+
+    // For  Displaying  Account Details
+    public void displayAccountDetails() {
+        System.out.println("Account Number: " + accountNumber);
+        System.out.println("Account Holder: " + accountHolderName);
+        System.out.println("Balance: " + Money.format(balance));
+        System.out.println("Email: " + email);
+        System.out.println("Phone: " + phoneNumber);
+    }
+
+    // To Update Contact Details
+    public void updateContactDetails(String email, String phoneNumber) {
+        this.email = email;
+        this.phoneNumber = phoneNumber;
+    }
+
+    // To use Getter for accountNumber
+    public int getAccountNumber() {
+        return accountNumber;
+    }
+
+    public long getBalance() {
+        return balance;
+    }
+
+    public String getAccountHolderName() {
+        return accountHolderName;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public String getPhoneNumber() {
+        return phoneNumber;
+    }
+}
+
+// Account Store keyed by account number
+// Open addressing over a primitive int[] so lookups are constant time and never box the key.
+// Lookups take no lock: writers are serialized, publish each slot with a release store and swap in
+// a fully built table on resize, so readers always see complete accounts.
+class AccountRepository {
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(Account[].class);
+
+    // One generation of the hash table; replaced as a whole when it grows
+    private static final class Table {
+        final int[] keys;
+        final Account[] values;
+        final int mask;
+        final int resizeAt;
+
+        Table(int capacity) {
+            keys = new int[capacity];
+            values = new Account[capacity];
+            mask = capacity - 1;
+            resizeAt = (capacity >> 1) + (capacity >> 2); // 0.75 load factor
+        }
+    }
+
+    private volatile Table table;
+    private volatile int size;
+
+    public AccountRepository() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public AccountRepository(int expectedAccounts) {
+        table = new Table(tableSizeFor(Math.max(expectedAccounts, DEFAULT_CAPACITY)));
+    }
+
+    // To Find Account by Number
+    public Account get(int accountNumber) {
+        Table t = table;
+        int i = slot(accountNumber, t.mask);
+        Account acc;
+        while ((acc = (Account) SLOT.getAcquire(t.values, i)) != null) {
+            if (t.keys[i] == accountNumber) {
+                return acc;
+            }
+            i = (i + 1) & t.mask;
+        }
+        return null;
+    }
+
+    public boolean contains(int accountNumber) {
+        return get(accountNumber) != null;
+    }
+
+    // Adds the account; returns false if the number is already taken
+    public synchronized boolean add(Account account) {
+        Table t = table;
+        int accountNumber = account.getAccountNumber();
+        int i = slot(accountNumber, t.mask);
+        while (t.values[i] != null) {
+            if (t.keys[i] == accountNumber) {
+                return false;
+            }
+            i = (i + 1) & t.mask;
+        }
+        t.keys[i] = accountNumber;
+        SLOT.setRelease(t.values, i, account);
+        int n = size + 1;
+        size = n;
+        if (n >= t.resizeAt) {
+            table = rehash(t, t.values.length << 1);
+        }
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void forEach(Consumer<Account> action) {
+        Table t = table;
+        for (int i = 0; i < t.values.length; i++) {
+            Account acc = (Account) SLOT.getAcquire(t.values, i);
+            if (acc != null) {
+                action.accept(acc);
+            }
+        }
+    }
+
+    // Splits the current table into slot ranges for parallel sweeps; accounts opened after the call may be missed
+    public Spliterator<Account> spliterator() {
+        return new SlotSpliterator(table.values, 0, table.values.length);
+    }
+
+    private static final class SlotSpliterator implements Spliterator<Account> {
+        private final Account[] values;
+        private int from;
+        private final int to;
+
+        SlotSpliterator(Account[] values, int from, int to) {
+            this.values = values;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Account> action) {
+            while (from < to) {
+                Account acc = (Account) SLOT.getAcquire(values, from++);
+                if (acc != null) {
+                    action.accept(acc);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super Account> action) {
+            for (; from < to; from++) {
+                Account acc = (Account) SLOT.getAcquire(values, from);
+                if (acc != null) {
+                    action.accept(acc);
+                }
+            }
+        }
+
+        @Override
+        public Spliterator<Account> trySplit() {
+            int mid = (from + to) >>> 1;
+            if (to - from < 4096) {
+                return null;
+            }
+            Spliterator<Account> prefix = new SlotSpliterator(values, from, mid);
+            from = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return to - from;
+        }
+
+        @Override
+        public int characteristics() {
+            return NONNULL | DISTINCT; // estimateSize counts slots, not accounts
+        }
+    }
+
+    private static int slot(int accountNumber, int mask) {
+        // spread sequential numbers so they do not cluster in neighbouring slots
+        int h = accountNumber * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static Table rehash(Table old, int newCapacity) {
+        Table t = new Table(newCapacity);
+        for (int j = 0; j < old.values.length; j++) {
+            if (old.values[j] != null) {
+                int i = slot(old.keys[j], t.mask);
+                while (t.values[i] != null) {
+                    i = (i + 1) & t.mask;
+                }
+                t.keys[i] = old.keys[j];
+                t.values[i] = old.values[j];
+            }
+        }
+        return t;
+    }
+
+    private static int tableSizeFor(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(1, expected * 4 / 3 + 1) - 1) << 1;
+        return Math.max(capacity, DEFAULT_CAPACITY);
+    }
+}
+
+// Secondary lookups by email, phone and holder name
+// Email and phone are exact-match hash indexes holding primitive account-number sets;
+// names live in a sorted skip list so a prefix query is a range scan.
+class AccountIndex {
+    private static final int[] NONE = new int[0];
+
+    // Account numbers sharing one email or phone; grows by doubling so a common value stays cheap
+    private static final class IdSet {
+        private int[] ids = new int[2];
+        private int size;
+
+        // Callers never add an account twice: contact changes remove the old entry first
+        synchronized void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        synchronized boolean removeAndCheckEmpty(int id) {
+            for (int i = 0; i < size; i++) {
+                if (ids[i] == id) {
+                    ids[i] = ids[--size];
+                    break;
+                }
+            }
+            return size == 0;
+        }
+
+        synchronized int[] toArray() {
+            return Arrays.copyOf(ids, size);
+        }
+    }
+
+    private final ConcurrentHashMap<String, IdSet> byEmail = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, IdSet> byPhone = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<String, Account> byName = new ConcurrentSkipListMap<>();
+
+    public void add(Account acc) {
+        byName.put(nameKey(acc.getAccountHolderName(), acc.getAccountNumber()), acc);
+        addContact(acc.getAccountNumber(), acc.getEmail(), acc.getPhoneNumber());
+    }
+
+    // Moves the account's entries from its old contact details to the new ones
+    public void contactChanged(int accountNumber, String oldEmail, String oldPhone, String newEmail, String newPhone) {
+        remove(byEmail, normalizeEmail(oldEmail), accountNumber);
+        remove(byPhone, normalizePhone(oldPhone), accountNumber);
+        addContact(accountNumber, newEmail, newPhone);
+    }
+
+    public int[] findByEmail(String email) {
+        IdSet ids = byEmail.get(normalizeEmail(email));
+        return ids == null ? NONE : ids.toArray();
+    }
+
+    public int[] findByPhone(String phoneNumber) {
+        IdSet ids = byPhone.get(normalizePhone(phoneNumber));
+        return ids == null ? NONE : ids.toArray();
+    }
+
+    // Accounts whose holder name starts with the prefix (case-insensitive), in name order
+    public List<Account> findByNamePrefix(String prefix, int limit) {
+        String from = prefix.trim().toLowerCase(Locale.ROOT);
+        List<Account> result = new ArrayList<>();
+        for (Account acc : byName.subMap(from, true, from + Character.MAX_VALUE, false).values()) {
+            if (result.size() == limit) {
+                break;
+            }
+            result.add(acc);
+        }
+        return result;
+    }
+
+    private void addContact(int accountNumber, String email, String phoneNumber) {
+        add(byEmail, normalizeEmail(email), accountNumber);
+        add(byPhone, normalizePhone(phoneNumber), accountNumber);
+    }
+
+    // Both updates run inside compute, so a set is never dropped while another thread adds to it
+    private static void add(ConcurrentHashMap<String, IdSet> index, String key, int accountNumber) {
+        if (key.isEmpty()) {
+            return;
+        }
+        index.compute(key, (k, ids) -> {
+            IdSet set = ids == null ? new IdSet() : ids;
+            set.add(accountNumber);
+            return set;
+        });
+    }
+
+    private static void remove(ConcurrentHashMap<String, IdSet> index, String key, int accountNumber) {
+        if (key.isEmpty()) {
+            return;
+        }
+        index.computeIfPresent(key, (k, ids) -> ids.removeAndCheckEmpty(accountNumber) ? null : ids);
+    }
+
+    // The account number suffix keeps holders with the same name apart
+    private static String nameKey(String name, int accountNumber) {
+        return (name == null ? "" : name.trim().toLowerCase(Locale.ROOT)) + '\0' + accountNumber;
+    }
+
+    private static String normalizeEmail(String email) {
+        return email == null ? "" : email.trim().toLowerCase(Locale.ROOT);
+    }
+
+    // Compares phone numbers by digits only, so "98765 43210" and "9876543210" match
+    private static String normalizePhone(String phoneNumber) {
+        if (phoneNumber == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(phoneNumber.length());
+        for (int i = 0; i < phoneNumber.length(); i++) {
+            char c = phoneNumber.charAt(i);
+            if (c >= '0' && c <= '9') {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
+
+// One line of a statement, built only when a query returns it
+class Posting {
+    final long sequence;
+    final long timeMillis;
+    final byte kind;
+    final long amount;
+    final long balanceAfter;
+
+    Posting(long sequence, long timeMillis, byte kind, long amount, long balanceAfter) {
+        this.sequence = sequence;
+        this.timeMillis = timeMillis;
+        this.kind = kind;
+        this.amount = amount;
+        this.balanceAfter = balanceAfter;
+    }
+
+    public String toString() {
+        String type;
+        switch (kind) {
+            case StatementHistory.DEPOSIT: type = "Deposit"; break;
+            case StatementHistory.WITHDRAWAL: type = "Withdrawal"; break;
+            case StatementHistory.TRANSFER_IN: type = "Transfer in"; break;
+            case StatementHistory.TRANSFER_OUT: type = "Transfer out"; break;
+            case StatementHistory.INTEREST: type = "Interest"; break;
+            default: type = "Fee"; break;
+        }
+        return String.format("#%-6d %tF %<tT  %-12s %14s  Balance: %s",
+                sequence, timeMillis, type, Money.format(amount), Money.format(balanceAfter));
+    }
+}
+
+// Per-account posting history for mini-statements and audits
+// Postings are stored column-wise in primitive chunks of up to 256 entries. Each account keeps its
+// newest chunks on the heap; older full chunks are appended to bank.history and read back through
+// memory-mapped buffers, so heap use per account stays flat however long the history grows.
+// bank.history outlives the process: after an 8-byte header it is a run of chunks, each holding its
+// account number, its posting count and that many entries. close() appends every chunk still on the
+// heap, and open() walks the file to rebuild each account's chunk index and next sequence number.
+class StatementHistory implements Closeable {
+    static final String SPILL_FILE = "bank.history";
+    static final byte DEPOSIT = 1;
+    static final byte WITHDRAWAL = 2;
+    static final byte TRANSFER_IN = 3;
+    static final byte TRANSFER_OUT = 4;
+    static final byte INTEREST = 5;
+    static final byte FEE = 6;
+
+    private static final int CHUNK = 256;
+    private static final int RESIDENT_CHUNKS = 2;
+    private static final int SPILL_MAGIC = 0x424B4832; // "BKH2", chunks sized to their postings
+    private static final int SPILL_HEADER = 8;
+    // a spilled chunk starts with its account number and posting count
+    private static final int CHUNK_HEADER = 8;
+    private static final int MAX_CHUNK_BYTES = chunkBytes(CHUNK);
+
+    // One column-oriented block of postings
+    private static final class Chunk {
+        long[] seq = new long[8];
+        long[] time = new long[8];
+        long[] amount = new long[8];
+        long[] balance = new long[8];
+        byte[] kind = new byte[8];
+        int size;
+
+        void add(long s, long t, byte k, long a, long b) {
+            if (size == seq.length) {
+                int n = Math.min(CHUNK, size * 2);
+                seq = Arrays.copyOf(seq, n);
+                time = Arrays.copyOf(time, n);
+                amount = Arrays.copyOf(amount, n);
+                balance = Arrays.copyOf(balance, n);
+                kind = Arrays.copyOf(kind, n);
+            }
+            seq[size] = s;
+            time[size] = t;
+            amount[size] = a;
+            balance[size] = b;
+            kind[size] = k;
+            size++;
+        }
+
+        Posting get(int i) {
+            return new Posting(seq[i], time[i], kind[i], amount[i], balance[i]);
+        }
+    }
+
+    // History of one account; guarded by the account's TransactionEngine stripe
+    static final class Log {
+        private long nextSeq = 1;
+        private Chunk current = new Chunk();
+        private Chunk[] resident = new Chunk[RESIDENT_CHUNKS]; // oldest first
+        private int residentCount;
+        private long[] spillOffset = new long[0];
+        private long[] spillFirstTime = new long[0];
+        private long[] spillLastTime = new long[0];
+        private int spilledCount;
+    }
+
+    private final FileChannel spill; // null keeps every chunk on the heap
+    private final DataDirLock lock; // null with spill
+    private final ByteBuffer spillBuffer = ByteBuffer.allocate(MAX_CHUNK_BYTES);
+    private final Queue<Account> logged = new ConcurrentLinkedQueue<>(); // accounts with a Log, for close()
+    private long spillEnd = SPILL_HEADER;
+    private boolean closed;
+
+    private StatementHistory(FileChannel spill, DataDirLock lock) {
+        this.spill = spill;
+        this.lock = lock;
+    }
+
+    // Continues the history left by earlier runs: postings are appended after it, and every account
+    // in the store gets back its index of the chunks already on disk
+    public static StatementHistory open(Path dir, AccountRepository accounts) throws IOException {
+        DataDirLock lock = DataDirLock.acquire(dir);
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(dir.resolve(SPILL_FILE), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            StatementHistory history = new StatementHistory(channel, lock);
+            history.recover(accounts);
+            return history;
+        } catch (IOException | RuntimeException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            lock.close();
+            throw e;
+        }
+    }
+
+    public static StatementHistory inMemory() {
+        return new StatementHistory(null, null);
+    }
+
+    // Caller holds the account's stripe
+    public void record(Account acc, byte kind, long amount, long timeMillis) {
+        Log log = logOf(acc);
+        if (log.current.size == CHUNK) {
+            retire(log, acc.getAccountNumber());
+        }
+        log.current.add(log.nextSeq++, timeMillis, kind, amount, acc.getBalance());
+    }
+
+    // The newest n postings, oldest first
+    public List<Posting> last(Account acc, int n) {
+        return collect(acc, n, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    // Postings made between the two times (inclusive), oldest first
+    public List<Posting> between(Account acc, long fromMillis, long toMillis) {
+        return collect(acc, Integer.MAX_VALUE, fromMillis, toMillis);
+    }
+
+    // Writes out every chunk still on the heap, so the next open() sees each account's whole history
+    @Override
+    public synchronized void close() throws IOException {
+        if (spill == null || closed) {
+            return;
+        }
+        closed = true;
+        try {
+            for (Account acc : logged) {
+                Log log = acc.postings;
+                for (int c = 0; c < log.residentCount; c++) {
+                    writeSpilled(log, log.resident[c], acc.getAccountNumber());
+                }
+                if (log.current.size > 0) {
+                    writeSpilled(log, log.current, acc.getAccountNumber());
+                }
+                log.residentCount = 0;
+                log.current = new Chunk();
+            }
+            spill.force(false);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            try {
+                spill.close();
+            } finally {
+                lock.close();
+            }
+        }
+    }
+
+    // Indexes the chunks earlier runs left on disk; a torn chunk at the end is dropped, and a file
+    // without this header (the scratch spill of older versions) is started afresh
+    private void recover(AccountRepository accounts) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(SPILL_HEADER);
+        if (spill.size() < SPILL_HEADER || spill.read(header, 0) < SPILL_HEADER || header.getInt(0) != SPILL_MAGIC) {
+            spill.truncate(0);
+            header.clear();
+            header.putInt(SPILL_MAGIC).putInt(0).flip();
+            while (header.hasRemaining()) {
+                spill.write(header, header.position());
+            }
+            return;
+        }
+        long fileSize = spill.size();
+        long offset = SPILL_HEADER;
+        ByteBuffer b = ByteBuffer.allocate(MAX_CHUNK_BYTES);
+        while (offset + CHUNK_HEADER <= fileSize) {
+            b.clear().limit(CHUNK_HEADER);
+            readFully(b, offset);
+            int size = b.getInt(4);
+            if (size <= 0 || size > CHUNK || offset + chunkBytes(size) > fileSize) {
+                break;
+            }
+            b.clear().limit(chunkBytes(size));
+            readFully(b, offset);
+            Account acc = accounts.get(b.getInt(0));
+            if (acc != null) {
+                Log log = logOf(acc);
+                int timeAt = CHUNK_HEADER + size * 8;
+                log.nextSeq = b.getLong(CHUNK_HEADER + (size - 1) * 8) + 1;
+                indexSpilled(log, offset, b.getLong(timeAt), b.getLong(timeAt + (size - 1) * 8));
+            }
+            offset += chunkBytes(size);
+        }
+        spill.truncate(offset);
+        spillEnd = offset;
+    }
+
+    private void readFully(ByteBuffer b, long offset) throws IOException {
+        while (b.hasRemaining()) {
+            if (spill.read(b, offset + b.position()) < 0) {
+                throw new EOFException("Truncated statement history: " + SPILL_FILE);
+            }
+        }
+    }
+
+    private static int chunkBytes(int size) {
+        return CHUNK_HEADER + size * (4 * 8 + 1);
+    }
+
+    private Log logOf(Account acc) {
+        Log log = acc.postings;
+        if (log == null) {
+            log = acc.postings = new Log();
+            logged.add(acc);
+        }
+        return log;
+    }
+
+    // Walks chunks newest to oldest, skipping spilled chunks whose time range cannot match
+    private List<Posting> collect(Account acc, int limit, long fromMillis, long toMillis) {
+        List<Posting> out = new ArrayList<>();
+        Log log = acc.postings;
+        if (log == null || limit <= 0) {
+            return out;
+        }
+        if (!scan(log.current, limit, fromMillis, toMillis, out)) {
+            return reverse(out);
+        }
+        for (int c = log.residentCount - 1; c >= 0; c--) {
+            if (!scan(log.resident[c], limit, fromMillis, toMillis, out)) {
+                return reverse(out);
+            }
+        }
+        for (int c = log.spilledCount - 1; c >= 0 && out.size() < limit; c--) {
+            if (log.spillLastTime[c] < fromMillis) {
+                break;
+            }
+            if (log.spillFirstTime[c] > toMillis) {
+                continue;
+            }
+            try {
+                long offset = log.spillOffset[c];
+                // the count is in the chunk itself, so map the largest chunk that fits before the end of the file
+                MappedByteBuffer m = spill.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(MAX_CHUNK_BYTES, spill.size() - offset));
+                int size = m.getInt(4);
+                int timeAt = CHUNK_HEADER + size * 8, amountAt = timeAt + size * 8, balanceAt = amountAt + size * 8;
+                int kindAt = balanceAt + size * 8;
+                for (int i = size - 1; i >= 0 && out.size() < limit; i--) {
+                    long time = m.getLong(timeAt + i * 8);
+                    if (time < fromMillis) {
+                        return reverse(out);
+                    }
+                    if (time <= toMillis) {
+                        out.add(new Posting(m.getLong(CHUNK_HEADER + i * 8), time, m.get(kindAt + i),
+                                m.getLong(amountAt + i * 8), m.getLong(balanceAt + i * 8)));
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return reverse(out);
+    }
+
+    // Returns false once the walk has gone past fromMillis or collected enough
+    private static boolean scan(Chunk chunk, int limit, long fromMillis, long toMillis, List<Posting> out) {
+        for (int i = chunk.size - 1; i >= 0; i--) {
+            if (out.size() >= limit || chunk.time[i] < fromMillis) {
+                return false;
+            }
+            if (chunk.time[i] <= toMillis) {
+                out.add(chunk.get(i));
+            }
+        }
+        return true;
+    }
+
+    private static List<Posting> reverse(List<Posting> out) {
+        Collections.reverse(out);
+        return out;
+    }
+
+    // Moves the full current chunk into the resident set, spilling the oldest resident chunk
+    private void retire(Log log, int accountNumber) {
+        Chunk next = null;
+        if (log.residentCount == log.resident.length) {
+            if (spill == null) {
+                log.resident = Arrays.copyOf(log.resident, log.residentCount * 2);
+            } else {
+                next = log.resident[0];
+                writeSpilled(log, next, accountNumber);
+                System.arraycopy(log.resident, 1, log.resident, 0, log.residentCount - 1);
+                log.residentCount--;
+                next.size = 0; // reuse the spilled chunk's arrays
+            }
+        }
+        log.resident[log.residentCount++] = log.current;
+        log.current = next != null ? next : new Chunk();
+    }
+
+    // Only the chunk's postings are written, so a part-filled chunk flushed by close costs what it holds
+    private void writeSpilled(Log log, Chunk chunk, int accountNumber) {
+        long offset;
+        synchronized (this) {
+            ByteBuffer b = spillBuffer;
+            b.clear();
+            b.putInt(accountNumber).putInt(chunk.size);
+            for (long[] column : new long[][] {chunk.seq, chunk.time, chunk.amount, chunk.balance}) {
+                b.asLongBuffer().put(column, 0, chunk.size);
+                b.position(b.position() + chunk.size * 8);
+            }
+            b.put(chunk.kind, 0, chunk.size);
+            b.flip();
+            offset = spillEnd;
+            try {
+                while (b.hasRemaining()) {
+                    spill.write(b, spillEnd + b.position());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            spillEnd += b.limit();
+        }
+        indexSpilled(log, offset, chunk.time[0], chunk.time[chunk.size - 1]);
+    }
+
+    private static void indexSpilled(Log log, long offset, long firstTime, long lastTime) {
+        if (log.spilledCount == log.spillOffset.length) {
+            int n = Math.max(4, log.spilledCount * 2);
+            log.spillOffset = Arrays.copyOf(log.spillOffset, n);
+            log.spillFirstTime = Arrays.copyOf(log.spillFirstTime, n);
+            log.spillLastTime = Arrays.copyOf(log.spillLastTime, n);
+        }
+        log.spillOffset[log.spilledCount] = offset;
+        log.spillFirstTime[log.spilledCount] = firstTime;
+        log.spillLastTime[log.spilledCount] = lastTime;
+        log.spilledCount++;
+    }
+}
+
+// Keeps a second process out of a data directory. The journal, the statement history and the account
+// number allocator each hold bank.lock while open, so --batch or --accrue started next to a running
+// teller UI fails at once instead of interleaving appends and checkpoints with it. Inside one process
+// the OS lock is shared and released with its last holder: closing any channel on the file would
+// drop it for all of them.
+final class DataDirLock implements Closeable {
+    static final String LOCK_FILE = "bank.lock";
+    private static final Map<Path, DataDirLock> held = new HashMap<>();
+
+    private final Path path;
+    private final FileChannel channel;
+    private int holders;
+
+    private DataDirLock(Path path, FileChannel channel) {
+        this.path = path;
+        this.channel = channel;
+    }
+
+    public static synchronized DataDirLock acquire(Path dir) throws IOException {
+        Path path = dir.resolve(LOCK_FILE).toAbsolutePath().normalize();
+        DataDirLock lock = held.get(path);
+        if (lock == null) {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            try {
+                if (channel.tryLock() == null) {
+                    throw new IOException("Bank data in " + path.getParent() + " is in use by another process ("
+                            + LOCK_FILE + " is locked)");
+                }
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            lock = new DataDirLock(path, channel);
+            held.put(path, lock);
+        }
+        lock.holders++;
+        return lock;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (DataDirLock.class) {
+            if (--holders > 0) {
+                return;
+            }
+            held.remove(path);
+            channel.close();
+        }
+    }
+}
+
+// Hands out account numbers without a shared lock
+// Numbers are reserved on disk in blocks; inside a block each call is a single getAndIncrement.
+// After a restart numbering resumes past the last reserved block, so a number is never reused.
+class AccountNumberAllocator implements Closeable {
+    static final String IDS_FILE = "bank.ids";
+    static final long FIRST_NUMBER = 1000;
+
+    private final AtomicLong next;
+    private final long maxNumber;
+    private final int blockSize;
+    private final FileChannel channel; // null when nothing is persisted
+    private final DataDirLock lock; // null when nothing is persisted
+    private volatile long reservedUpTo; // exclusive
+    private boolean closed;
+
+    private AccountNumberAllocator(long start, long maxNumber, int blockSize, FileChannel channel, DataDirLock lock) {
+        this.next = new AtomicLong(start);
+        this.reservedUpTo = start;
+        this.maxNumber = maxNumber;
+        this.blockSize = blockSize;
+        this.channel = channel;
+        this.lock = lock;
+    }
+
+    // Resumes after both the persisted reservation and the highest account already in the store
+    public static AccountNumberAllocator open(Path dir, AccountRepository accounts) throws IOException {
+        DataDirLock lock = DataDirLock.acquire(dir);
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(dir.resolve(IDS_FILE), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long start = Math.max(FIRST_NUMBER, highestNumber(accounts) + 1);
+            if (channel.size() >= 8) {
+                ByteBuffer buf = ByteBuffer.allocate(8);
+                channel.read(buf, 0);
+                buf.flip();
+                start = Math.max(start, buf.getLong());
+            }
+            return new AccountNumberAllocator(start, Integer.MAX_VALUE, 4096, channel, lock);
+        } catch (IOException | RuntimeException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            lock.close();
+            throw e;
+        }
+    }
+
+    public static AccountNumberAllocator inMemory(AccountRepository accounts) {
+        return new AccountNumberAllocator(Math.max(FIRST_NUMBER, highestNumber(accounts) + 1), Integer.MAX_VALUE, 4096, null, null);
+    }
+
+    public int nextAccountNumber() {
+        long id = next.getAndIncrement();
+        if (id > maxNumber) {
+            throw new IllegalStateException("No account numbers left below " + maxNumber);
+        }
+        if (id >= reservedUpTo) {
+            reserve(id);
+        }
+        return (int) id;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel == null || closed) {
+            return;
+        }
+        closed = true;
+        try {
+            channel.close();
+        } finally {
+            lock.close();
+        }
+    }
+
+    // Extends the reservation past id and makes it durable before any number in it is handed out
+    private synchronized void reserve(long id) {
+        long limit = reservedUpTo;
+        if (id < limit) {
+            return;
+        }
+        while (id >= limit) {
+            limit += blockSize;
+        }
+        if (channel != null) {
+            try {
+                ByteBuffer buf = ByteBuffer.allocate(8);
+                buf.putLong(limit).flip();
+                channel.write(buf, 0);
+                channel.force(false);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        reservedUpTo = limit;
+    }
+
+    private static long highestNumber(AccountRepository accounts) {
+        long[] max = {0};
+        accounts.forEach(acc -> max[0] = Math.max(max[0], acc.getAccountNumber()));
+        return max[0];
+    }
+}
+
+// Thread-safe deposit and withdraw over the account store
+// Each account maps to one lock stripe, so tellers working on different stripes never wait on each other
+// With a journal attached, every successful change is logged under its stripe and the call
+// returns only after the record is durable.
+class TransactionEngine implements Closeable {
+    private final AccountRepository accounts;
+    private final TransactionJournal journal;
+    private final AccountIndex index = new AccountIndex();
+    private final StatementHistory history;
+    private final ReentrantLock[] stripes;
+    private final int stripeMask;
+    private final AtomicBoolean checkpointing = new AtomicBoolean();
+    private volatile Thread checkpointer;
+    private volatile IOException checkpointFailure;
+
+    public TransactionEngine(AccountRepository accounts) {
+        this(accounts, null);
+    }
+
+    public TransactionEngine(AccountRepository accounts, TransactionJournal journal) {
+        this(accounts, journal, null);
+    }
+
+    // history may be null to skip recording statements
+    public TransactionEngine(AccountRepository accounts, TransactionJournal journal, StatementHistory history) {
+        this(accounts, journal, history, Runtime.getRuntime().availableProcessors() * 16);
+    }
+
+    public TransactionEngine(AccountRepository accounts, TransactionJournal journal, StatementHistory history, int stripeCount) {
+        int n = Integer.highestOneBit(Math.max(2, stripeCount) - 1) << 1;
+        this.accounts = accounts;
+        this.journal = journal;
+        this.history = history;
+        this.stripes = new ReentrantLock[n];
+        this.stripeMask = n - 1;
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        accounts.forEach(index::add);
+    }
+
+    // Registers a new account; returns false if the number is already taken
+    public boolean open(Account account) {
+        long seq = 0;
+        ReentrantLock lock = stripeFor(account.getAccountNumber());
+        lock.lock();
+        try {
+            if (!accounts.add(account)) {
+                return false;
+            }
+            index.add(account);
+            if (journal != null) {
+                seq = journal.logCreate(account);
+            }
+        } finally {
+            lock.unlock();
+        }
+        commit(seq);
+        return true;
+    }
+
+    // Opens an account under the next free number from the allocator
+    public Account open(AccountNumberAllocator allocator, String name, long balance, String email, String phoneNumber) {
+        while (true) {
+            Account account = new Account(allocator.nextAccountNumber(), name, balance, email, phoneNumber);
+            if (open(account)) {
+                return account;
+            }
+        }
+    }
+
+    public TxResult deposit(int accountNumber, long amount) {
+        return deposit(accountNumber, amount, true);
+    }
+
+    // Batch callers pass awaitDurable = false and call sync() once per batch instead of once per posting
+    TxResult deposit(int accountNumber, long amount, boolean awaitDurable) {
+        Account acc = accounts.get(accountNumber);
+        if (acc == null) {
+            return TxResult.ACCOUNT_NOT_FOUND;
+        }
+        TxResult result;
+        long seq = 0;
+        ReentrantLock lock = stripeFor(accountNumber);
+        lock.lock();
+        try {
+            result = acc.deposit(amount);
+            if (result == TxResult.OK) {
+                if (history != null) {
+                    history.record(acc, StatementHistory.DEPOSIT, amount, System.currentTimeMillis());
+                }
+                if (journal != null) {
+                    seq = journal.logDeposit(accountNumber, amount);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (awaitDurable) {
+            commit(seq);
+        } else {
+            maybeCheckpoint(seq);
+        }
+        return result;
+    }
+
+    public TxResult withdraw(int accountNumber, long amount) {
+        return withdraw(accountNumber, amount, true);
+    }
+
+    TxResult withdraw(int accountNumber, long amount, boolean awaitDurable) {
+        Account acc = accounts.get(accountNumber);
+        if (acc == null) {
+            return TxResult.ACCOUNT_NOT_FOUND;
+        }
+        TxResult result;
+        long seq = 0;
+        ReentrantLock lock = stripeFor(accountNumber);
+        lock.lock();
+        try {
+            result = acc.withdraw(amount);
+            if (result == TxResult.OK) {
+                if (history != null) {
+                    history.record(acc, StatementHistory.WITHDRAWAL, amount, System.currentTimeMillis());
+                }
+                if (journal != null) {
+                    seq = journal.logWithdraw(accountNumber, amount);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (awaitDurable) {
+            commit(seq);
+        } else {
+            maybeCheckpoint(seq);
+        }
+        return result;
+    }
+
+    public TxResult updateContact(int accountNumber, String email, String phoneNumber) {
+        Account acc = accounts.get(accountNumber);
+        if (acc == null) {
+            return TxResult.ACCOUNT_NOT_FOUND;
+        }
+        long seq = 0;
+        ReentrantLock lock = stripeFor(accountNumber);
+        lock.lock();
+        try {
+            index.contactChanged(accountNumber, acc.getEmail(), acc.getPhoneNumber(), email, phoneNumber);
+            acc.updateContactDetails(email, phoneNumber);
+            if (journal != null) {
+                seq = journal.logContact(accountNumber, email, phoneNumber);
+            }
+        } finally {
+            lock.unlock();
+        }
+        commit(seq);
+        return TxResult.OK;
+    }
+
+    // Applies interest and the low-balance fee to one account under its stripe
+    // Postings are journaled like deposits and withdrawals; call sync() once the sweep is done
+    void accrue(Account acc, AccrualRates rates, AccrualReport report) {
+        long seq = 0;
+        ReentrantLock lock = stripeFor(acc.getAccountNumber());
+        lock.lock();
+        try {
+            long balance = acc.getBalance();
+            long interest = rates.interestOn(balance);
+            if (interest > 0 && acc.deposit(interest) == TxResult.OK) {
+                report.interest(interest);
+                if (history != null) {
+                    history.record(acc, StatementHistory.INTEREST, interest, System.currentTimeMillis());
+                }
+                if (journal != null) {
+                    seq = journal.logDeposit(acc.getAccountNumber(), interest);
+                }
+            }
+            long fee = rates.feeOn(balance);
+            if (fee > 0 && acc.withdraw(fee) == TxResult.OK) {
+                report.fee(fee);
+                if (history != null) {
+                    history.record(acc, StatementHistory.FEE, fee, System.currentTimeMillis());
+                }
+                if (journal != null) {
+                    seq = journal.logWithdraw(acc.getAccountNumber(), fee);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        report.account();
+        maybeCheckpoint(seq);
+    }
+
+    // Mini-statement: the newest postings of one account, oldest first
+    public List<Posting> lastPostings(int accountNumber, int n) {
+        Account acc = accounts.get(accountNumber);
+        if (acc == null || history == null) {
+            return new ArrayList<>();
+        }
+        ReentrantLock lock = stripeFor(accountNumber);
+        lock.lock();
+        try {
+            return history.last(acc, n);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public List<Posting> postingsBetween(int accountNumber, long fromMillis, long toMillis) {
+        Account acc = accounts.get(accountNumber);
+        if (acc == null || history == null) {
+            return new ArrayList<>();
+        }
+        ReentrantLock lock = stripeFor(accountNumber);
+        lock.lock();
+        try {
+            return history.between(acc, fromMillis, toMillis);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public List<Account> findByEmail(String email) {
+        return resolve(index.findByEmail(email));
+    }
+
+    public List<Account> findByPhone(String phoneNumber) {
+        return resolve(index.findByPhone(phoneNumber));
+    }
+
+    public List<Account> findByNamePrefix(String prefix, int limit) {
+        return index.findByNamePrefix(prefix, limit);
+    }
+
+    private List<Account> resolve(int[] accountNumbers) {
+        List<Account> result = new ArrayList<>(accountNumbers.length);
+        for (int accountNumber : accountNumbers) {
+            Account acc = accounts.get(accountNumber);
+            if (acc != null) {
+                result.add(acc);
+            }
+        }
+        return result;
+    }
+
+    // Moves money between two accounts as one step
+    // Stripes are always taken lowest index first, so opposite-direction transfers cannot deadlock
+    public TxResult transfer(int fromAccount, int toAccount, long amount) {
+        if (fromAccount == toAccount) {
+            return TxResult.SAME_ACCOUNT;
+        }
+        Account from = accounts.get(fromAccount);
+        Account to = accounts.get(toAccount);
+        if (from == null || to == null) {
+            return TxResult.ACCOUNT_NOT_FOUND;
+        }
+        int a = stripeIndex(fromAccount);
+        int b = stripeIndex(toAccount);
+        ReentrantLock first = stripes[Math.min(a, b)];
+        ReentrantLock second = stripes[Math.max(a, b)];
+        TxResult result;
+        long seq = 0;
+        first.lock();
+        try {
+            if (second != first) {
+                second.lock();
+            }
+            try {
+                result = from.withdraw(amount);
+                if (result == TxResult.OK) {
+                    TxResult credited = to.deposit(amount);
+                    if (credited != TxResult.OK) {
+                        from.deposit(amount); // undo; cannot overflow, the money was just taken out
+                        result = credited;
+                    } else {
+                        if (history != null) {
+                            long now = System.currentTimeMillis();
+                            history.record(from, StatementHistory.TRANSFER_OUT, amount, now);
+                            history.record(to, StatementHistory.TRANSFER_IN, amount, now);
+                        }
+                        if (journal != null) {
+                            seq = journal.logTransfer(fromAccount, toAccount, amount);
+                        }
+                    }
+                }
+            } finally {
+                if (second != first) {
+                    second.unlock();
+                }
+            }
+        } finally {
+            first.unlock();
+        }
+        commit(seq);
+        return result;
+    }
+
+    // Reads the balance under the stripe so it reflects every completed posting
+    public long balance(int accountNumber) {
+        Account acc = accounts.get(accountNumber);
+        if (acc == null) {
+            return 0;
+        }
+        ReentrantLock lock = stripeFor(accountNumber);
+        lock.lock();
+        try {
+            return acc.getBalance();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Copies the store with every stripe held, which is the only pause postings see, then writes the
+    // snapshot and drops the journal records it covers while postings carry on
+    public void checkpoint() throws IOException {
+        if (journal == null) {
+            return;
+        }
+        TransactionJournal.Cut cut;
+        for (ReentrantLock lock : stripes) {
+            lock.lock();
+        }
+        try {
+            cut = journal.cut(accounts);
+        } finally {
+            for (int i = stripes.length - 1; i >= 0; i--) {
+                stripes[i].unlock();
+            }
+        }
+        journal.checkpoint(cut);
+    }
+
+    // Waits for a running checkpoint, then closes the journal and the history whatever happens to the
+    // other; a failed background checkpoint is reported here, with any close failure suppressed on it
+    @Override
+    public void close() throws IOException {
+        Thread running = checkpointer;
+        if (running != null) {
+            try {
+                running.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Exception failure = checkpointFailure;
+        try {
+            if (journal != null) {
+                journal.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            failure = chain(failure, e);
+        } finally {
+            try {
+                if (history != null) {
+                    history.close();
+                }
+            } catch (IOException | RuntimeException e) {
+                failure = chain(failure, e);
+            }
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure != null) {
+            throw (IOException) failure;
+        }
+    }
+
+    private static Exception chain(Exception first, Exception next) {
+        if (first == null) {
+            return next;
+        }
+        first.addSuppressed(next);
+        return first;
+    }
+
+    // Waits until everything posted so far, including deferred postings, is durable
+    public void sync() {
+        if (journal != null) {
+            commit(journal.lastSequence());
+        }
+    }
+
+    // Waits for durability outside the stripe, then takes a snapshot once enough records have built up
+    private void commit(long seq) {
+        if (seq == 0) {
+            return;
+        }
+        journal.awaitDurable(seq);
+        maybeCheckpoint(seq);
+    }
+
+    // The snapshot is written on its own thread so the posting that crossed the threshold returns at
+    // once. A failed checkpoint loses nothing, the journal still holds every record; it is retried at
+    // the next posting and reported by close().
+    private void maybeCheckpoint(long seq) {
+        if (seq != 0 && journal.snapshotDue() && checkpointing.compareAndSet(false, true)) {
+            Thread t = new Thread(() -> {
+                try {
+                    checkpoint();
+                    checkpointFailure = null;
+                } catch (IOException e) {
+                    checkpointFailure = e;
+                } catch (UncheckedIOException e) {
+                    checkpointFailure = e.getCause();
+                } finally {
+                    checkpointing.set(false);
+                }
+            }, "bank-checkpoint");
+            t.setDaemon(true);
+            checkpointer = t;
+            t.start();
+        }
+    }
+
+    private ReentrantLock stripeFor(int accountNumber) {
+        return stripes[stripeIndex(accountNumber)];
+    }
+
+    private int stripeIndex(int accountNumber) {
+        int h = accountNumber * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & stripeMask;
+    }
+}
+
+// Write-Ahead Journal for the account store
+// Every committed change is appended to bank.journal as a binary record; one flusher thread
+// batches the records that arrive within a short window into a single write and fsync (group commit).
+// A snapshot of all accounts is written periodically and the journal restarts after the records it
+// covers, which keeps replay short.
+class TransactionJournal implements Closeable {
+    static final String JOURNAL_FILE = "bank.journal";
+    static final String SNAPSHOT_FILE = "bank.snapshot";
+
+    private static final int JOURNAL_MAGIC = 0x424B4A32; // "BKJ2", amounts in minor units
+    private static final int SNAPSHOT_MAGIC = 0x424B5333; // "BKS3", records the journal position it covers
+    private static final int SNAPSHOT_MAGIC_V2 = 0x424B5332; // "BKS2", still readable
+    private static final int HEADER_BYTES = 12;
+
+    private static final byte CREATE = 1;
+    private static final byte DEPOSIT = 2;
+    private static final byte WITHDRAW = 3;
+    private static final byte TRANSFER = 4;
+    private static final byte CONTACT = 5;
+
+    private final Path journalPath;
+    private final Path snapshotPath;
+    private FileChannel channel; // guarded by channelLock once the flusher runs
+    private final DataDirLock lock;
+    private final long groupCommitNanos;
+    private final long snapshotEvery;
+    private final Object channelLock = new Object();
+    private final Thread flusher;
+
+    // guarded by this
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer writing = ByteBuffer.allocate(64 * 1024);
+    private long appendedSeq;
+    private long appendedBytes; // journal file offset just past the last appended record
+    private long durableSeq;
+    private long recordsSinceSnapshot;
+    private long epoch;
+    private IOException failure;
+    private boolean closed;
+
+    // Account state copied with every writer stopped, and the journal position it reflects
+    static final class Cut {
+        final long epoch;
+        final long offset;
+        final long seq;
+        final long records;
+        final int[] numbers;
+        final long[] balances;
+        final String[] names;
+        final String[] emails;
+        final String[] phones;
+
+        Cut(long epoch, long offset, long seq, long records, int size) {
+            this.epoch = epoch;
+            this.offset = offset;
+            this.seq = seq;
+            this.records = records;
+            numbers = new int[size];
+            balances = new long[size];
+            names = new String[size];
+            emails = new String[size];
+            phones = new String[size];
+        }
+    }
+
+    // set by loadSnapshot: the journal epoch and offset a BKS3 snapshot continues from, -1 if none
+    private long snapshotBaseEpoch = -1;
+    private long snapshotBaseOffset;
+
+    private TransactionJournal(Path dir, long groupCommitMillis, long snapshotEvery, DataDirLock lock) throws IOException {
+        this.journalPath = dir.resolve(JOURNAL_FILE);
+        this.snapshotPath = dir.resolve(SNAPSHOT_FILE);
+        this.lock = lock;
+        this.channel = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.groupCommitNanos = TimeUnit.MILLISECONDS.toNanos(groupCommitMillis);
+        this.snapshotEvery = snapshotEvery;
+        this.flusher = new Thread(this::flushLoop, "bank-journal-flusher");
+        this.flusher.setDaemon(true);
+    }
+
+    public static TransactionJournal open(Path dir) throws IOException {
+        return open(dir, 2, 100_000);
+    }
+
+    // Fails with an IOException if another process has the directory open
+    public static TransactionJournal open(Path dir, long groupCommitMillis, long snapshotEvery) throws IOException {
+        DataDirLock lock = DataDirLock.acquire(dir);
+        try {
+            return new TransactionJournal(dir, groupCommitMillis, snapshotEvery, lock);
+        } catch (IOException | RuntimeException e) {
+            lock.close();
+            throw e;
+        }
+    }
+
+    // Loads the latest snapshot, replays the journal written after it, then starts accepting appends
+    public void recover(AccountRepository accounts) throws IOException {
+        long snapshotEpoch = loadSnapshot(accounts);
+        long journalEpoch = -1;
+        long validEnd = 0;
+        if (channel.size() >= HEADER_BYTES) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            channel.read(header, 0);
+            header.flip();
+            if (header.getInt() != JOURNAL_MAGIC) {
+                throw new IOException("Unsupported journal format: " + journalPath);
+            }
+            journalEpoch = header.getLong();
+        }
+        boolean unfinishedCheckpoint = false;
+        if (journalEpoch == snapshotEpoch) {
+            validEnd = replay(accounts, HEADER_BYTES);
+        } else if (journalEpoch >= 0 && journalEpoch == snapshotBaseEpoch) {
+            // a crash after the snapshot was written but before the journal was cut back to it
+            validEnd = replay(accounts, snapshotBaseOffset);
+            unfinishedCheckpoint = true;
+        }
+        synchronized (channelLock) {
+            if (validEnd == 0) {
+                // no journal yet, or one that predates the snapshot
+                resetJournal(snapshotEpoch);
+                validEnd = HEADER_BYTES;
+            } else {
+                // drop a torn record left by a crash mid-write
+                channel.truncate(validEnd);
+                channel.position(validEnd);
+            }
+        }
+        appendedBytes = validEnd;
+        epoch = snapshotEpoch;
+        if (unfinishedCheckpoint) {
+            dropThrough(snapshotBaseOffset, snapshotEpoch, 0);
+        }
+        flusher.start();
+    }
+
+    public long logCreate(Account acc) {
+        return append(CREATE, acc.getAccountNumber(), 0, acc.getBalance(), acc.getAccountHolderName(), acc.getEmail(), acc.getPhoneNumber());
+    }
+
+    public long logDeposit(int accountNumber, long amount) {
+        return append(DEPOSIT, accountNumber, 0, amount, null, null, null);
+    }
+
+    public long logWithdraw(int accountNumber, long amount) {
+        return append(WITHDRAW, accountNumber, 0, amount, null, null, null);
+    }
+
+    public long logTransfer(int fromAccount, int toAccount, long amount) {
+        return append(TRANSFER, fromAccount, toAccount, amount, null, null, null);
+    }
+
+    public long logContact(int accountNumber, String email, String phoneNumber) {
+        return append(CONTACT, accountNumber, 0, 0, null, email, phoneNumber);
+    }
+
+    // Blocks until the record with this sequence number has been fsynced
+    public synchronized void awaitDurable(long seq) {
+        boolean interrupted = false;
+        while (durableSeq < seq && failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (durableSeq < seq) {
+            throw new UncheckedIOException("Journal write failed", failure);
+        }
+    }
+
+    public synchronized long lastSequence() {
+        return appendedSeq;
+    }
+
+    public synchronized boolean snapshotDue() {
+        return recordsSinceSnapshot >= snapshotEvery;
+    }
+
+    // Copies every account and notes the journal position the copy reflects
+    // The caller must stop all writers first (TransactionEngine holds every stripe)
+    public Cut cut(AccountRepository accounts) {
+        Cut cut;
+        synchronized (this) {
+            cut = new Cut(epoch, appendedBytes, appendedSeq, recordsSinceSnapshot, accounts.size());
+        }
+        int[] i = {0};
+        accounts.forEach(acc -> {
+            cut.numbers[i[0]] = acc.getAccountNumber();
+            cut.balances[i[0]] = acc.getBalance();
+            cut.names[i[0]] = acc.getAccountHolderName();
+            cut.emails[i[0]] = acc.getEmail();
+            cut.phones[i[0]] = acc.getPhoneNumber();
+            i[0]++;
+        });
+        return cut;
+    }
+
+    // Writes the copy as the next snapshot, then drops the journal records it covers; appends carry on
+    // meanwhile. The snapshot names the journal position it starts from, so a crash between the two
+    // steps replays just the records after it.
+    public void checkpoint(Cut cut) throws IOException {
+        awaitDurable(cut.seq);
+        long nextEpoch = cut.epoch + 1;
+        Path tmp = snapshotPath.resolveSibling(SNAPSHOT_FILE + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp.toFile())) {
+            CRC32C crc = new CRC32C();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(fos, crc), 64 * 1024));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(nextEpoch);
+            out.writeLong(cut.epoch);
+            out.writeLong(cut.offset);
+            out.writeInt(cut.numbers.length);
+            for (int i = 0; i < cut.numbers.length; i++) {
+                out.writeInt(cut.numbers[i]);
+                out.writeLong(cut.balances[i]);
+                writeNullable(out, cut.names[i]);
+                writeNullable(out, cut.emails[i]);
+                writeNullable(out, cut.phones[i]);
+            }
+            out.flush();
+            new DataOutputStream(fos).writeInt((int) crc.getValue());
+            fos.getFD().sync();
+        }
+        Files.move(tmp, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dropThrough(cut.offset, nextEpoch, cut.records);
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            channel.close();
+        } finally {
+            lock.close();
+        }
+    }
+
+    private synchronized long append(byte type, int accountNumber, int otherAccount, long amount,
+                                     String name, String email, String phoneNumber) {
+        if (closed) {
+            throw new IllegalStateException("Journal is closed");
+        }
+        byte[] n = name == null ? null : name.getBytes(StandardCharsets.UTF_8);
+        byte[] e = email == null ? null : email.getBytes(StandardCharsets.UTF_8);
+        byte[] p = phoneNumber == null ? null : phoneNumber.getBytes(StandardCharsets.UTF_8);
+        int bodyLength = 1 + 4 + 4 + 8 + lengthOf(n) + lengthOf(e) + lengthOf(p);
+        ensureCapacity(8 + bodyLength);
+
+        int start = pending.position();
+        pending.putInt(bodyLength).putInt(0);
+        int bodyStart = pending.position();
+        pending.put(type).putInt(accountNumber).putInt(otherAccount).putLong(amount);
+        putBytes(n);
+        putBytes(e);
+        putBytes(p);
+
+        CRC32C crc = new CRC32C();
+        crc.update(pending.array(), bodyStart, bodyLength);
+        pending.putInt(start + 4, (int) crc.getValue());
+
+        if (start == 0) {
+            notifyAll();
+        }
+        recordsSinceSnapshot++;
+        appendedBytes += 8 + bodyLength;
+        return ++appendedSeq;
+    }
+
+    private void flushLoop() {
+        while (true) {
+            long batchSeq;
+            synchronized (this) {
+                while (pending.position() == 0 && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.position() == 0) {
+                    return;
+                }
+            }
+            // let concurrent commits pile into the same batch before paying for the fsync
+            if (groupCommitNanos > 0) {
+                LockSupport.parkNanos(groupCommitNanos);
+            }
+            synchronized (this) {
+                ByteBuffer full = pending;
+                pending = writing;
+                writing = full;
+                batchSeq = appendedSeq;
+            }
+            IOException error = null;
+            synchronized (channelLock) {
+                try {
+                    writing.flip();
+                    while (writing.hasRemaining()) {
+                        channel.write(writing);
+                    }
+                    channel.force(false);
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            writing.clear();
+            synchronized (this) {
+                if (error != null) {
+                    failure = error;
+                } else {
+                    durableSeq = batchSeq;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private long loadSnapshot(AccountRepository accounts) throws IOException {
+        if (!Files.exists(snapshotPath)) {
+            return 0;
+        }
+        CRC32C crc = new CRC32C();
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(Files.newInputStream(snapshotPath), 64 * 1024), crc))) {
+            int magic = in.readInt();
+            if (magic != SNAPSHOT_MAGIC && magic != SNAPSHOT_MAGIC_V2) {
+                throw new IOException("Not a bank snapshot: " + snapshotPath);
+            }
+            long snapshotEpoch = in.readLong();
+            if (magic == SNAPSHOT_MAGIC) {
+                snapshotBaseEpoch = in.readLong();
+                snapshotBaseOffset = in.readLong();
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int accNo = in.readInt();
+                long balance = in.readLong();
+                if (magic == SNAPSHOT_MAGIC) {
+                    accounts.add(new Account(accNo, readNullable(in), balance, readNullable(in), readNullable(in)));
+                } else {
+                    accounts.add(new Account(accNo, in.readUTF(), balance, in.readUTF(), in.readUTF()));
+                }
+            }
+            int expectedCrc = (int) crc.getValue();
+            if (in.readInt() != expectedCrc) {
+                throw new IOException("Corrupt bank snapshot: " + snapshotPath);
+            }
+            return snapshotEpoch;
+        }
+    }
 
-    // Make Constructor
-    public Account(int accountNumber, String accountHolderName, double balance, String email, String phoneNumber) {
-        this.accountNumber = accountNumber;
-        this.accountHolderName = accountHolderName;
-        this.balance = balance;
-        this.email = email;
-        this.phoneNumber = phoneNumber;
+    // Applies journal records in order from the given offset and returns the offset just past the last
+    // intact record
+    private long replay(AccountRepository accounts, long from) throws IOException {
+        long end = channel.size();
+        long offset = from;
+        ByteBuffer frame = ByteBuffer.allocate(8);
+        ByteBuffer body = ByteBuffer.allocate(256);
+        CRC32C crc = new CRC32C();
+        while (offset + 8 <= end) {
+            frame.clear();
+            channel.read(frame, offset);
+            frame.flip();
+            int bodyLength = frame.getInt();
+            int expectedCrc = frame.getInt();
+            if (bodyLength <= 0 || offset + 8 + bodyLength > end) {
+                break;
+            }
+            if (body.capacity() < bodyLength) {
+                body = ByteBuffer.allocate(bodyLength);
+            }
+            body.clear().limit(bodyLength);
+            channel.read(body, offset + 8);
+            crc.reset();
+            crc.update(body.array(), 0, bodyLength);
+            if ((int) crc.getValue() != expectedCrc) {
+                break;
+            }
+            body.flip();
+            apply(accounts, body);
+            offset += 8 + bodyLength;
+        }
+        return offset;
     }
 
-    // Adding Deposit Method
-    public void deposit(double amount) {
-        if (amount > 0) {
-            balance += amount;
-            System.out.println("Deposited: " + amount + ". New Balance: " + balance);
-        } else {
-            System.out.println("Invalid deposit amount. Must be positive.");
+    private static void apply(AccountRepository accounts, ByteBuffer body) {
+        byte type = body.get();
+        int accNo = body.getInt();
+        int otherAccount = body.getInt();
+        long amount = body.getLong();
+        String name = getString(body);
+        String email = getString(body);
+        String phone = getString(body);
+        switch (type) {
+            case CREATE:
+                accounts.add(new Account(accNo, name, amount, email, phone));
+                break;
+            case DEPOSIT:
+                accounts.get(accNo).deposit(amount);
+                break;
+            case WITHDRAW:
+                accounts.get(accNo).withdraw(amount);
+                break;
+            case TRANSFER:
+                accounts.get(accNo).withdraw(amount);
+                accounts.get(otherAccount).deposit(amount);
+                break;
+            case CONTACT:
+                accounts.get(accNo).updateContactDetails(email, phone);
+                break;
+            default:
+                throw new IllegalStateException("Unknown journal record type " + type);
         }
     }
 
-    // Adding Withdraw Method
-    public void withdraw(double amount) {
-        if (amount > 0) {
-            if (balance >= amount) {
-                balance -= amount;
-                System.out.println("Withdrawn: " + amount + ". Remaining Balance: " + balance);
-            } else {
-                System.out.println("Insufficient balance!");
+    // Replaces the journal with one for newEpoch holding only the records after offset. The tail is
+    // copied under channelLock, so the flusher waits but appends do not; the new file is renamed into
+    // place and later batches go to it.
+    private void dropThrough(long offset, long newEpoch, long recordsDropped) throws IOException {
+        Path tmp = journalPath.resolveSibling(JOURNAL_FILE + ".tmp");
+        synchronized (channelLock) {
+            FileChannel next = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                header.putInt(JOURNAL_MAGIC).putLong(newEpoch).flip();
+                next.write(header, 0);
+                long tail = channel.size() - offset;
+                for (long done = 0; done < tail; ) {
+                    done += channel.transferTo(offset + done, tail - done, next.position(HEADER_BYTES + done));
+                }
+                next.force(true);
+                Files.move(tmp, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                next.close();
+                throw e;
+            }
+            channel.close();
+            channel = next;
+            channel.position(channel.size());
+            synchronized (this) {
+                appendedBytes -= offset - HEADER_BYTES;
+                recordsSinceSnapshot -= recordsDropped;
+                epoch = newEpoch;
             }
+        }
+    }
+
+    // Snapshot strings carry a presence flag, since contact details may be null
+    private static void writeNullable(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private void resetJournal(long newEpoch) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(JOURNAL_MAGIC).putLong(newEpoch).flip();
+        channel.truncate(0);
+        channel.write(header, 0);
+        channel.force(true);
+        channel.position(HEADER_BYTES);
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (pending.remaining() < bytes) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + bytes));
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+    }
+
+    private void putBytes(byte[] b) {
+        if (b == null) {
+            pending.putInt(-1);
         } else {
-            System.out.println("Invalid withdrawal amount. Must be positive.");
+            pending.putInt(b.length).put(b);
         }
     }
 
-    // For  Displaying  Account Details
-    public void displayAccountDetails() {
-        System.out.println("Account Number: " + accountNumber);
-        System.out.println("Account Holder: " + accountHolderName);
-        System.out.println("Balance: " + balance);
-        System.out.println("Email: " + email);
-        System.out.println("Phone: " + phoneNumber);
+    private static int lengthOf(byte[] b) {
+        return 4 + (b == null ? 0 : b.length);
     }
 
-    // To Update Contact Details
-    public void updateContactDetails(String email, String phoneNumber) {
-        this.email = email;
-        this.phoneNumber = phoneNumber;
-        System.out.println("Contact details updated successfully.");
+    private static String getString(ByteBuffer body) {
+        int length = body.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String s = new String(body.array(), body.position(), length, StandardCharsets.UTF_8);
+        body.position(body.position() + length);
+        return s;
     }
+}
 
-    // To use Getter for accountNumber
-    public int getAccountNumber() {
-        return accountNumber;
+// Month-end rate rules, all amounts in minor units
+class AccrualRates {
+    final long interestBasisPoints; // per run, 1 bp = 0.01%
+    final long minimumBalance;
+    final long lowBalanceFee;
+
+    AccrualRates(long interestBasisPoints, long minimumBalance, long lowBalanceFee) {
+        this.interestBasisPoints = interestBasisPoints;
+        this.minimumBalance = minimumBalance;
+        this.lowBalanceFee = lowBalanceFee;
+    }
+
+    // Rounds down; split so that large balances cannot overflow the multiplication
+    long interestOn(long balance) {
+        if (balance <= 0 || interestBasisPoints <= 0) {
+            return 0;
+        }
+        return balance / 10_000 * interestBasisPoints + balance % 10_000 * interestBasisPoints / 10_000;
+    }
+
+    // Never takes more than the account holds
+    long feeOn(long balance) {
+        if (balance >= minimumBalance) {
+            return 0;
+        }
+        return Math.min(lowBalanceFee, Math.max(0, balance));
+    }
+}
+
+// Totals for one accrual run; updated from many sweep threads at once
+class AccrualReport {
+    private final LongAdder accounts = new LongAdder();
+    private final LongAdder interestPostings = new LongAdder();
+    private final LongAdder interestCents = new LongAdder();
+    private final LongAdder feePostings = new LongAdder();
+    private final LongAdder feeCents = new LongAdder();
+    long elapsedNanos;
+
+    void account() {
+        accounts.increment();
+    }
+
+    void interest(long cents) {
+        interestPostings.increment();
+        interestCents.add(cents);
+    }
+
+    void fee(long cents) {
+        feePostings.increment();
+        feeCents.add(cents);
+    }
+
+    long accounts() {
+        return accounts.sum();
+    }
+
+    long postings() {
+        return interestPostings.sum() + feePostings.sum();
+    }
+
+    void print() {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println("\n=============== Month-End Accrual ===============");
+        System.out.println("Accounts processed: " + accounts.sum());
+        System.out.println("Interest postings:  " + interestPostings.sum() + " totalling " + Money.format(interestCents.sum()));
+        System.out.println("Fees charged:       " + feePostings.sum() + " totalling " + Money.format(feeCents.sum()));
+        System.out.printf("Elapsed: %.2f s (%.0f accounts/s)%n", seconds, accounts.sum() / Math.max(seconds, 1e-9));
+        System.out.println("=================================================");
+    }
+}
+
+// Month-end sweep over every account
+// The store is split into slot ranges that a parallel stream runs on the fork/join pool. Each account
+// is updated under its own TransactionEngine stripe, so live deposits and withdrawals carry on during
+// the run; an account opened after the sweep starts is left for the next run.
+class AccrualEngine {
+    private final AccountRepository accounts;
+    private final TransactionEngine engine;
+
+    public AccrualEngine(AccountRepository accounts, TransactionEngine engine) {
+        this.accounts = accounts;
+        this.engine = engine;
+    }
+
+    public AccrualReport run(AccrualRates rates) {
+        AccrualReport report = new AccrualReport();
+        long start = System.nanoTime();
+        StreamSupport.stream(accounts.spliterator(), true)
+                .forEach(acc -> engine.accrue(acc, rates, report));
+        engine.sync();
+        report.elapsedNanos = System.nanoTime() - start;
+        return report;
+    }
+}
+
+// Counters printed after a batch run
+class BatchSummary {
+    long records;
+    long malformed;
+    long deposits;
+    long depositCents;
+    long withdrawals;
+    long withdrawalCents;
+    long notFound;
+    long insufficient;
+    long invalidAmount;
+
+    void add(BatchSummary other) {
+        records += other.records;
+        malformed += other.malformed;
+        deposits += other.deposits;
+        depositCents += other.depositCents;
+        withdrawals += other.withdrawals;
+        withdrawalCents += other.withdrawalCents;
+        notFound += other.notFound;
+        insufficient += other.insufficient;
+        invalidAmount += other.invalidAmount;
+    }
+
+    void print(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println("\n=============== Batch Reconciliation ===============");
+        System.out.println("Records read:          " + records);
+        System.out.println("Malformed lines:       " + malformed);
+        System.out.println("Deposits applied:      " + deposits + " totalling " + Money.format(depositCents));
+        System.out.println("Withdrawals applied:   " + withdrawals + " totalling " + Money.format(withdrawalCents));
+        System.out.println("Rejected (no account): " + notFound);
+        System.out.println("Rejected (balance):    " + insufficient);
+        System.out.println("Rejected (amount):     " + invalidAmount);
+        System.out.println("Net change:            " + Money.format(depositCents - withdrawalCents));
+        System.out.printf("Elapsed: %.2f s (%.0f records/s)%n", seconds, records / Math.max(seconds, 1e-9));
+        System.out.println("====================================================");
+    }
+}
+
+// Headless settlement mode: streams a file of "D,account,amount" / "W,account,amount" lines
+// Lines are parsed straight from the read buffer into primitive batches, and each batch goes to the
+// worker that owns its account number, so per-account order is kept without any cross-worker locking.
+class BatchIngestor {
+    private static final int BATCH_SIZE = 4096;
+    private static final int READ_BUFFER = 1 << 20;
+    private static final byte DEPOSIT = 'D';
+    private static final byte WITHDRAW = 'W';
+
+    // One chunk of parsed records for a single worker
+    private static final class Batch {
+        final byte[] types = new byte[BATCH_SIZE];
+        final int[] accounts = new int[BATCH_SIZE];
+        final long[] cents = new long[BATCH_SIZE];
+        int count;
+    }
+
+    private static final Batch END = new Batch();
+
+    private final TransactionEngine engine;
+    private final int workers;
+
+    public BatchIngestor(TransactionEngine engine, int workers) {
+        this.engine = engine;
+        this.workers = Math.max(1, workers);
+    }
+
+    // A failure in any worker stops the run and is rethrown here once every worker has finished
+    public BatchSummary ingest(Path file) throws IOException, InterruptedException {
+        List<BlockingQueue<Batch>> queues = new ArrayList<>();
+        BlockingQueue<Batch> free = new ArrayBlockingQueue<>(workers * 8);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        BatchSummary[] results = new BatchSummary[workers];
+        Thread[] threads = new Thread[workers];
+        for (int w = 0; w < workers; w++) {
+            BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(4);
+            BatchSummary summary = new BatchSummary();
+            queues.add(queue);
+            results[w] = summary;
+            threads[w] = new Thread(() -> work(queue, free, summary, failure), "batch-worker-" + w);
+            threads[w].start();
+        }
+        for (int i = 0; i < workers * 8; i++) {
+            free.add(new Batch());
+        }
+
+        BatchSummary total = new BatchSummary();
+        Batch[] open = new Batch[workers];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate(READ_BUFFER);
+            byte[] b = buf.array();
+            boolean eof = false;
+            while (!eof && failure.get() == null) {
+                eof = channel.read(buf) < 0;
+                int limit = buf.position();
+                int lineStart = 0;
+                for (int i = 0; i < limit; i++) {
+                    if (b[i] == '\n') {
+                        parseLine(b, lineStart, i, open, queues, free, total);
+                        lineStart = i + 1;
+                    }
+                }
+                if (eof && lineStart < limit) {
+                    parseLine(b, lineStart, limit, open, queues, free, total);
+                    lineStart = limit;
+                } else if (lineStart == 0 && limit == b.length) {
+                    throw new IOException("Line longer than " + READ_BUFFER + " bytes in " + file);
+                }
+                // keep the unfinished line for the next read
+                System.arraycopy(b, lineStart, b, 0, limit - lineStart);
+                buf.position(limit - lineStart);
+            }
+        } finally {
+            for (int w = 0; w < workers; w++) {
+                if (open[w] != null && open[w].count > 0) {
+                    queues.get(w).put(open[w]);
+                }
+                queues.get(w).put(END);
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+        }
+        Throwable failed = failure.get();
+        if (failed instanceof UncheckedIOException) {
+            throw ((UncheckedIOException) failed).getCause();
+        } else if (failed instanceof RuntimeException) {
+            throw (RuntimeException) failed;
+        } else if (failed instanceof Error) {
+            throw (Error) failed;
+        } else if (failed != null) {
+            throw new IOException(failed);
+        }
+        engine.sync();
+        for (BatchSummary summary : results) {
+            total.add(summary);
+        }
+        return total;
+    }
+
+    // Parses one record in b[from, to) without creating any objects
+    private void parseLine(byte[] b, int from, int to, Batch[] open, List<BlockingQueue<Batch>> queues,
+                           BlockingQueue<Batch> free, BatchSummary total) throws InterruptedException {
+        while (from < to && b[from] <= ' ') {
+            from++;
+        }
+        while (to > from && b[to - 1] <= ' ') {
+            to--;
+        }
+        if (from == to || b[from] == '#') {
+            return;
+        }
+        total.records++;
+        byte type = (byte) (b[from] & ~0x20); // upper-case
+        int i = from + 1;
+        if ((type != DEPOSIT && type != WITHDRAW) || i >= to || b[i] != ',') {
+            total.malformed++;
+            return;
+        }
+        i++;
+        long account = 0;
+        int digits = 0;
+        while (i < to && b[i] >= '0' && b[i] <= '9' && digits < 10) {
+            account = account * 10 + (b[i++] - '0');
+            digits++;
+        }
+        if (digits == 0 || account > Integer.MAX_VALUE || i >= to || b[i] != ',') {
+            total.malformed++;
+            return;
+        }
+        i++;
+        boolean negative = i < to && b[i] == '-';
+        if (negative) {
+            i++;
+        }
+        long units = 0;
+        digits = 0;
+        while (i < to && b[i] >= '0' && b[i] <= '9' && digits < 15) {
+            units = units * 10 + (b[i++] - '0');
+            digits++;
+        }
+        int fraction = 0;
+        int fractionDigits = 0;
+        if (i < to && b[i] == '.') {
+            i++;
+            while (i < to && b[i] >= '0' && b[i] <= '9' && fractionDigits < 2) {
+                fraction = fraction * 10 + (b[i++] - '0');
+                fractionDigits++;
+            }
+        }
+        if (digits == 0 || i != to) {
+            total.malformed++;
+            return;
+        }
+        long cents = units * 100 + (fractionDigits == 1 ? fraction * 10 : fraction);
+
+        int owner = partitionOf((int) account);
+        Batch batch = open[owner];
+        if (batch == null) {
+            batch = open[owner] = free.take();
+        }
+        batch.types[batch.count] = type;
+        batch.accounts[batch.count] = (int) account;
+        batch.cents[batch.count] = negative ? -cents : cents;
+        if (++batch.count == BATCH_SIZE) {
+            queues.get(owner).put(batch);
+            open[owner] = null;
+        }
+    }
+
+    // After a failure, here or in another worker, batches are only handed back to the free list, so the
+    // reader never blocks on a full queue or an empty free list while it winds down
+    private void work(BlockingQueue<Batch> queue, BlockingQueue<Batch> free, BatchSummary summary, AtomicReference<Throwable> failure) {
+        try {
+            Batch batch;
+            while ((batch = queue.take()) != END) {
+                try {
+                    if (failure.get() == null) {
+                        apply(batch, summary);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    batch.count = 0;
+                    free.put(batch);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void apply(Batch batch, BatchSummary summary) {
+        for (int i = 0; i < batch.count; i++) {
+            long cents = batch.cents[i];
+            boolean deposit = batch.types[i] == DEPOSIT;
+            TxResult result = deposit
+                    ? engine.deposit(batch.accounts[i], cents, false)
+                    : engine.withdraw(batch.accounts[i], cents, false);
+            switch (result) {
+                case OK:
+                    if (deposit) {
+                        summary.deposits++;
+                        summary.depositCents += cents;
+                    } else {
+                        summary.withdrawals++;
+                        summary.withdrawalCents += cents;
+                    }
+                    break;
+                case ACCOUNT_NOT_FOUND: summary.notFound++; break;
+                case INSUFFICIENT_FUNDS: summary.insufficient++; break;
+                default: summary.invalidAmount++; break;
+            }
+        }
+    }
+
+    private int partitionOf(int accountNumber) {
+        int h = accountNumber * 0x9E3779B9;
+        return ((h ^ (h >>> 16)) & 0x7FFFFFFF) % workers;
     }
 }
 
 // Creating User Interface Class
 class UserInterface {
-    private Account[] accounts;
-    private int accountCount;
+    private AccountRepository accounts;
+    private TransactionEngine engine;
+    private AccountNumberAllocator allocator;
     private Scanner sc;
 
-    public UserInterface(int size) {
-        accounts = new Account[size];
-        accountCount = 0;
+    public UserInterface(int expectedAccounts) {
+        accounts = new AccountRepository(expectedAccounts);
+        engine = openEngine();
+        allocator = openAllocator();
         sc = new Scanner(System.in);
     }
 
+    // Replays the saved journal; falls back to an in-memory store if it cannot be read
+    private TransactionEngine openEngine() {
+        try {
+            TransactionJournal journal = TransactionJournal.open(Paths.get("."));
+            journal.recover(accounts);
+            return new TransactionEngine(accounts, journal, StatementHistory.open(Paths.get("."), accounts));
+        } catch (IOException e) {
+            System.out.println("Error loading journal: " + e.getMessage() + ". Changes will not be saved.");
+            return new TransactionEngine(accounts, null, StatementHistory.inMemory());
+        }
+    }
+
+    private AccountNumberAllocator openAllocator() {
+        try {
+            return AccountNumberAllocator.open(Paths.get("."), accounts);
+        } catch (IOException e) {
+            System.out.println("Error loading account numbers: " + e.getMessage());
+            return AccountNumberAllocator.inMemory(accounts);
+        }
+    }
+
     // For  New Account Creation
     public void createAccount() {
         System.out.print("Enter account holder name: ");
         String name = sc.nextLine();
 
         System.out.print("Enter initial deposit amount: ");
-        double balance = sc.nextDouble();
-        sc.nextLine(); 
+        long balance = Money.parse(sc.nextLine());
 
         System.out.print("Enter email address: ");
         String email = sc.nextLine();
@@ -91,33 +2347,30 @@ class UserInterface {
         System.out.print("Enter phone number: ");
         String phone = sc.nextLine();
 
-        int accNo = 1000 + accountCount ;
-        accounts[accountCount] = new Account(accNo, name, balance, email, phone);
-        System.out.println("Account created successfully with Account Number: " + accNo);
-        accountCount++;
+        Account acc = engine.open(allocator, name, balance, email, phone);
+        System.out.println("Account created successfully with Account Number: " + acc.getAccountNumber());
     }
 
     // To Find Account by Number
     private Account findAccount(int accNo) {
-        for (int i = 0; i < accountCount; i++) {
-            if (accounts[i].getAccountNumber() == accNo) {
-                return accounts[i];
-            }
-        }
-        return null;
+        return accounts.get(accNo);
     }
 
     // For Deposit Operation
     public void performDeposit() {
         System.out.print("Enter account number: ");
         int accNo = sc.nextInt();
-        System.out.print("Enter amount to deposit: ");
-        double amount = sc.nextDouble();
         sc.nextLine();
+        System.out.print("Enter amount to deposit: ");
+        long amount = Money.parse(sc.nextLine());
 
-        Account acc = findAccount(accNo);
-        if (acc != null) {
-            acc.deposit(amount);
+        TxResult result = engine.deposit(accNo, amount);
+        if (result == TxResult.OK) {
+            System.out.println("Deposited: " + Money.format(amount) + ". New Balance: " + Money.format(engine.balance(accNo)));
+        } else if (result == TxResult.BALANCE_OVERFLOW) {
+            System.out.println("Deposit would exceed the maximum balance.");
+        } else if (result == TxResult.INVALID_AMOUNT) {
+            System.out.println("Invalid deposit amount. Must be positive.");
         } else {
             System.out.println("Account not found.");
         }
@@ -127,18 +2380,95 @@ class UserInterface {
     public void performWithdrawal() {
         System.out.print("Enter account number: ");
         int accNo = sc.nextInt();
+        sc.nextLine();
         System.out.print("Enter amount to withdraw: ");
-        double amount = sc.nextDouble();
+        long amount = Money.parse(sc.nextLine());
+
+        TxResult result = engine.withdraw(accNo, amount);
+        if (result == TxResult.OK) {
+            System.out.println("Withdrawn: " + Money.format(amount) + ". Remaining Balance: " + Money.format(engine.balance(accNo)));
+        } else if (result == TxResult.INSUFFICIENT_FUNDS) {
+            System.out.println("Insufficient balance!");
+        } else if (result == TxResult.INVALID_AMOUNT) {
+            System.out.println("Invalid withdrawal amount. Must be positive.");
+        } else {
+            System.out.println("Account not found.");
+        }
+    }
+
+    // For Transfer Operation
+    public void performTransfer() {
+        System.out.print("Enter source account number: ");
+        int fromAccNo = sc.nextInt();
+        System.out.print("Enter destination account number: ");
+        int toAccNo = sc.nextInt();
         sc.nextLine();
+        System.out.print("Enter amount to transfer: ");
+        long amount = Money.parse(sc.nextLine());
 
-        Account acc = findAccount(accNo);
-        if (acc != null) {
-            acc.withdraw(amount);
+        TxResult result = engine.transfer(fromAccNo, toAccNo, amount);
+        if (result == TxResult.OK) {
+            System.out.println("Transferred: " + Money.format(amount) + " from " + fromAccNo + " to " + toAccNo + ".");
+        } else if (result == TxResult.INSUFFICIENT_FUNDS) {
+            System.out.println("Insufficient balance!");
+        } else if (result == TxResult.BALANCE_OVERFLOW) {
+            System.out.println("Transfer would exceed the destination's maximum balance.");
+        } else if (result == TxResult.INVALID_AMOUNT) {
+            System.out.println("Invalid transfer amount. Must be positive.");
+        } else if (result == TxResult.SAME_ACCOUNT) {
+            System.out.println("Source and destination accounts must differ.");
         } else {
             System.out.println("Account not found.");
         }
     }
 
+    // To Show Mini Statement
+    public void showMiniStatement() {
+        System.out.print("Enter account number: ");
+        int accNo = sc.nextInt();
+        sc.nextLine();
+
+        if (findAccount(accNo) == null) {
+            System.out.println("Account not found.");
+            return;
+        }
+        List<Posting> postings = engine.lastPostings(accNo, 10);
+        if (postings.isEmpty()) {
+            System.out.println("No transactions yet.");
+        }
+        for (Posting p : postings) {
+            System.out.println(p);
+        }
+    }
+
+    // To Search Accounts by Email, Phone or Name
+    public void searchAccounts() {
+        System.out.print("Search by 1. Email 2. Phone 3. Name prefix: ");
+        int by = sc.nextInt();
+        sc.nextLine();
+        System.out.print("Enter search text: ");
+        String text = sc.nextLine();
+
+        List<Account> found;
+        if (by == 1) {
+            found = engine.findByEmail(text);
+        } else if (by == 2) {
+            found = engine.findByPhone(text);
+        } else if (by == 3) {
+            found = engine.findByNamePrefix(text, 20);
+        } else {
+            System.out.println("Invalid choice.");
+            return;
+        }
+        if (found.isEmpty()) {
+            System.out.println("No matching accounts.");
+        }
+        for (Account acc : found) {
+            System.out.println();
+            acc.displayAccountDetails();
+        }
+    }
+
     // To Show Account Details
     public void showAccountDetails() {
         System.out.print("Enter account number: ");
@@ -165,14 +2495,23 @@ class UserInterface {
         System.out.print("Enter new phone number: ");
         String phone = sc.nextLine();
 
-        Account acc = findAccount(accNo);
-        if (acc != null) {
-            acc.updateContactDetails(email, phone);
+        if (engine.updateContact(accNo, email, phone) == TxResult.OK) {
+            System.out.println("Contact details updated successfully.");
         } else {
             System.out.println("Account not found.");
         }
     }
 
+    // Flushes the journal before exit
+    private void closeEngine() {
+        try {
+            engine.close();
+            allocator.close();
+        } catch (IOException e) {
+            System.out.println("Error closing journal: " + e.getMessage());
+        }
+    }
+
     // For  Main Menu
     public void mainMenu() {
         int choice;
@@ -183,7 +2522,10 @@ class UserInterface {
             System.out.println("3. Withdraw money");
             System.out.println("4. View account details");
             System.out.println("5. Update contact details");
-            System.out.println("6. Exit");
+            System.out.println("6. Transfer money");
+            System.out.println("7. Search accounts");
+            System.out.println("8. Mini statement");
+            System.out.println("9. Exit");
             System.out.print("Enter your choice: ");
             choice = sc.nextInt();
             sc.nextLine();
@@ -194,19 +2536,64 @@ class UserInterface {
                 case 3: performWithdrawal(); break;
                 case 4: showAccountDetails(); break;
                 case 5: updateContact(); break;
-                case 6: System.out.println("Exiting application. Goodbye!"); break;
+                case 6: performTransfer(); break;
+                case 7: searchAccounts(); break;
+                case 8: showMiniStatement(); break;
+                case 9: closeEngine(); System.out.println("Exiting application. Goodbye!"); break;
                 default: System.out.println("Invalid choice. Try again.");
             }
-        } while (choice != 6);
+        } while (choice != 9);
     }
 }
 
 // For Main Class
-public class BankingApp {
+class BankingApp {
     public static void main(String[] args) {
-        UserInterface ui = new UserInterface(50); 
+        if (args.length == 2 && args[0].equals("--batch")) {
+            runBatch(Paths.get(args[1]));
+            return;
+        }
+        if (args.length == 4 && args[0].equals("--accrue")) {
+            runAccrual(Long.parseLong(args[1]), Money.parse(args[2]), Money.parse(args[3]));
+            return;
+        }
+        UserInterface ui = new UserInterface(50);
         ui.mainMenu();
     }
+
+    // Usage: java BankingApp --batch settlement.csv
+    private static void runBatch(Path file) {
+        AccountRepository accounts = new AccountRepository();
+        try (TransactionJournal journal = TransactionJournal.open(Paths.get("."))) {
+            journal.recover(accounts);
+            try (TransactionEngine engine = new TransactionEngine(accounts, journal, StatementHistory.open(Paths.get("."), accounts))) {
+                int workers = Runtime.getRuntime().availableProcessors();
+                long start = System.nanoTime();
+                BatchSummary summary = new BatchIngestor(engine, workers).ingest(file);
+                summary.print(System.nanoTime() - start);
+            }
+        } catch (IOException e) {
+            System.out.println("Batch failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Batch interrupted.");
+        }
+    }
+
+    // Usage: java BankingApp --accrue <interest basis points> <minimum balance> <low balance fee>
+    // e.g.   java BankingApp --accrue 25 1000.00 50.00
+    private static void runAccrual(long interestBasisPoints, long minimumBalance, long lowBalanceFee) {
+        AccountRepository accounts = new AccountRepository();
+        try (TransactionJournal journal = TransactionJournal.open(Paths.get("."))) {
+            journal.recover(accounts);
+            try (TransactionEngine engine = new TransactionEngine(accounts, journal, StatementHistory.open(Paths.get("."), accounts))) {
+                AccrualRates rates = new AccrualRates(interestBasisPoints, minimumBalance, lowBalanceFee);
+                new AccrualEngine(accounts, engine).run(rates).print();
+            }
+        } catch (IOException e) {
+            System.out.println("Accrual failed: " + e.getMessage());
+        }
+    }
 }
 
 
@@ -214,37 +2601,32 @@ public class BankingApp {
 //import java.util.InputMismatchException;
 //import java.util.Scanner;
 
-public class UserInterface1 {
+class UserInterface1 {
     // To store all the bank accounts
-    private final Account[] accounts;
-        private int accountCount;
+    private final AccountRepository accounts;
+    private final TransactionEngine engine;
+    private final AccountNumberAllocator allocator;
     private final Scanner scanner;
 
     public UserInterface1() {
-        // Initialize an array 
-        this.accounts = new Account[100];
-                this.accountCount = 0;
+        // Grows on demand, so there is no maximum account limit
+        this.accounts = new AccountRepository();
+        this.engine = openEngine();
+        this.allocator = openAllocator();
             this.scanner = new Scanner(System.in);
     }
 
     public void createAccount() {
-        // To Check for hitting the max account limit
-        if (accountCount >= accounts.length) {
-            System.out.println("❌ Cannot create new account. Maximum limit reached.");
-            return;
-        }
-
         System.out.println("\n--- Create New Account ---");
 
         int accountNumber;
-        // Loop until a valid, unique account number is entered
+        // Loop until a valid, unique account number is entered; 0 lets the bank assign one
         while (true) {
-            System.out.print("Enter a unique 5-digit Account Number: ");
+            System.out.print("Enter a unique Account Number (or '0' to assign one automatically): ");
             accountNumber = readInt();
-            String accountNumStr = String.valueOf(accountNumber);
-            if (accountNumStr.length() != 5) {
-                System.out.println("❌ Account number must be exactly 5 digits. Please try again.");
-            } else if (findAccount(accountNumber) != null) {
+            if (accountNumber < 0) {
+                System.out.println("❌ Account number cannot be negative. Please try again.");
+            } else if (accountNumber != 0 && findAccount(accountNumber) != null) {
                 System.out.println("❌ This account number already exists. Please choose a different one.");
             } else {
                 break;
@@ -254,11 +2636,11 @@ public class UserInterface1 {
         System.out.print("Enter Account Holder's Name: ");
         String accountHolderName = scanner.nextLine();
 
-        double initialBalance = 0;
+        long initialBalance = 0;
         // Loop until a valid initial deposit amount is entered
         while (true) {
             System.out.print("Enter Initial Deposit Amount: ");
-            initialBalance = readDouble();
+            initialBalance = readAmount();
             if (initialBalance < 0) {
                 System.out.println("❌ Initial deposit cannot be negative. Please try again.");
             } else {
@@ -272,10 +2654,18 @@ public class UserInterface1 {
         String phoneNumber = scanner.nextLine();
 
     
-        accounts[accountCount] = new Account(accountNumber, accountHolderName, initialBalance, email, phoneNumber);
-        accountCount++;
+        Account account;
+        if (accountNumber == 0) {
+            account = engine.open(allocator, accountHolderName, initialBalance, email, phoneNumber);
+        } else {
+            account = new Account(accountNumber, accountHolderName, initialBalance, email, phoneNumber);
+            if (!engine.open(account)) {
+                System.out.println("❌ This account number was just taken. Please try again.");
+                return;
+            }
+        }
         System.out.println("\n✅ Account created successfully!");
-        accounts[accountCount - 1].displayAccountDetails();
+        account.displayAccountDetails();
     }
 
     public void performDeposit() {
@@ -287,8 +2677,16 @@ public class UserInterface1 {
         }
 
         System.out.print("Enter amount to deposit: ");
-        double amount = readDouble();
-        account.deposit(amount);
+        long amount = readAmount();
+        int accountNumber = account.getAccountNumber();
+        TxResult result = engine.deposit(accountNumber, amount);
+        if (result == TxResult.OK) {
+            System.out.println("Deposited: " + Money.format(amount) + ". New Balance: " + Money.format(engine.balance(accountNumber)));
+        } else if (result == TxResult.BALANCE_OVERFLOW) {
+            System.out.println("❌ Deposit would exceed the maximum balance.");
+        } else {
+            System.out.println("Invalid deposit amount. Must be positive.");
+        }
     }
 
     public void performWithdrawal() {
@@ -300,8 +2698,87 @@ public class UserInterface1 {
         }
 
         System.out.print("Enter amount to withdraw: ");
-        double amount = readDouble();
-        account.withdraw(amount);
+        long amount = readAmount();
+        int accountNumber = account.getAccountNumber();
+        TxResult result = engine.withdraw(accountNumber, amount);
+        if (result == TxResult.OK) {
+            System.out.println("Withdrawn: " + Money.format(amount) + ". Remaining Balance: " + Money.format(engine.balance(accountNumber)));
+        } else if (result == TxResult.INSUFFICIENT_FUNDS) {
+            System.out.println("Insufficient balance!");
+        } else {
+            System.out.println("Invalid withdrawal amount. Must be positive.");
+        }
+    }
+
+    public void performTransfer() {
+        System.out.println("\n--- Transfer Money ---");
+        System.out.println("Source account:");
+        Account from = getAccountFromUser();
+        if (from == null) {
+            return;
+        }
+        System.out.println("Destination account:");
+        Account to = getAccountFromUser();
+        if (to == null) {
+            return;
+        }
+
+        System.out.print("Enter amount to transfer: ");
+        long amount = readAmount();
+        TxResult result = engine.transfer(from.getAccountNumber(), to.getAccountNumber(), amount);
+        if (result == TxResult.OK) {
+            System.out.println("✅ Transferred " + Money.format(amount) + " from " + from.getAccountNumber() + " to " + to.getAccountNumber() + ".");
+        } else if (result == TxResult.INSUFFICIENT_FUNDS) {
+            System.out.println("❌ Insufficient balance!");
+        } else if (result == TxResult.SAME_ACCOUNT) {
+            System.out.println("❌ Source and destination accounts must differ.");
+        } else if (result == TxResult.BALANCE_OVERFLOW) {
+            System.out.println("❌ Transfer would exceed the destination's maximum balance.");
+        } else {
+            System.out.println("❌ Invalid transfer amount. Must be positive.");
+        }
+    }
+
+    public void showMiniStatement() {
+        System.out.println("\n--- Mini Statement ---");
+        Account account = getAccountFromUser();
+        if (account == null) {
+            return;
+        }
+        List<Posting> postings = engine.lastPostings(account.getAccountNumber(), 10);
+        if (postings.isEmpty()) {
+            System.out.println("No transactions yet.");
+        }
+        for (Posting p : postings) {
+            System.out.println(p);
+        }
+    }
+
+    public void searchAccounts() {
+        System.out.println("\n--- Search Accounts ---");
+        System.out.print("Search by 1. Email 2. Phone 3. Name prefix: ");
+        int by = readInt();
+        System.out.print("Enter search text: ");
+        String text = scanner.nextLine();
+
+        List<Account> found;
+        if (by == 1) {
+            found = engine.findByEmail(text);
+        } else if (by == 2) {
+            found = engine.findByPhone(text);
+        } else if (by == 3) {
+            found = engine.findByNamePrefix(text, 20);
+        } else {
+            System.out.println("❌ Invalid choice.");
+            return;
+        }
+        if (found.isEmpty()) {
+            System.out.println("No matching accounts.");
+        }
+        for (Account account : found) {
+            System.out.println();
+            account.displayAccountDetails();
+        }
     }
 
     public void showAccountDetails() {
@@ -326,17 +2803,34 @@ public class UserInterface1 {
         System.out.print("Enter new Phone Number (or press Enter to keep current): ");
         String newPhoneNumber = scanner.nextLine();
 
-                account.updateContactDetails(newEmail, newPhoneNumber);
+                engine.updateContact(account.getAccountNumber(), newEmail, newPhoneNumber);
+        System.out.println("Contact details updated successfully.");
     }
 
     
     private Account findAccount(int accountNumber) {
-        for (int i = 0; i < accountCount; i++) {
-            if (accounts[i].getAccountNumber() == accountNumber) {
-                return accounts[i];
-            }
+        return accounts.get(accountNumber);
+    }
+
+    // Replays the saved journal; falls back to an in-memory store if it cannot be read
+    private TransactionEngine openEngine() {
+        try {
+            TransactionJournal journal = TransactionJournal.open(Paths.get("."));
+            journal.recover(accounts);
+            return new TransactionEngine(accounts, journal, StatementHistory.open(Paths.get("."), accounts));
+        } catch (IOException e) {
+            System.out.println("❌ Error loading journal: " + e.getMessage() + ". Changes will not be saved.");
+            return new TransactionEngine(accounts, null, StatementHistory.inMemory());
+        }
+    }
+
+    private AccountNumberAllocator openAllocator() {
+        try {
+            return AccountNumberAllocator.open(Paths.get("."), accounts);
+        } catch (IOException e) {
+            System.out.println("❌ Error loading account numbers: " + e.getMessage());
+            return AccountNumberAllocator.inMemory(accounts);
         }
-        return null;
     }
 
         private Account getAccountFromUser() {
@@ -371,15 +2865,13 @@ public class UserInterface1 {
     }
 
     
-    private double readDouble() {
+    // Reads an amount such as 125.50 straight into minor units
+    private long readAmount() {
         while (true) {
             try {
-                double value = scanner.nextDouble();
-                scanner.nextLine(); 
-                                return value;
-            } catch (InputMismatchException e) {
-                System.out.println("❌ Invalid input. Please enter a number.");
-                scanner.nextLine();
+                return Money.parse(scanner.nextLine());
+            } catch (NumberFormatException e) {
+                System.out.println("❌ Invalid input. Please enter an amount such as 125.50.");
             }
         }
     }
@@ -393,7 +2885,10 @@ public class UserInterface1 {
             System.out.println("3. Withdraw Money");
             System.out.println("4. View Account Details");
             System.out.println("5. Update Contact Details");
-            System.out.println("6. Exit");
+            System.out.println("6. Transfer Money");
+            System.out.println("7. Search Accounts");
+            System.out.println("8. Mini Statement");
+            System.out.println("9. Exit");
             System.out.println("======================================================");
 
             System.out.print("Enter your choice: ");
@@ -417,6 +2912,21 @@ public class UserInterface1 {
                     updateContact();
                     break;
                 case 6:
+                    performTransfer();
+                    break;
+                case 7:
+                    searchAccounts();
+                    break;
+                case 8:
+                    showMiniStatement();
+                    break;
+                case 9:
+                    try {
+                        engine.close();
+                        allocator.close();
+                    } catch (IOException e) {
+                        System.out.println("❌ Error closing journal: " + e.getMessage());
+                    }
                     System.out.println(" Thank you for using the Banking Application. Goodbye!");
                     return;
                 default:
@@ -0,0 +1,516 @@
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+
+// Micro-benchmarks for the banking hot paths in BankingApplication.java
+// Compile together with it:  javac -encoding UTF-8 -d out BankingApplication.java BankingBenchmark.java
+// Run:                       java -Xmx4g -cp out BankingBenchmark [suite] [account counts] [threads]
+//   suite:          all | money | store | transfer | accrual | stress
+//   account counts: comma separated, default 1000,100000,10000000 (stress always uses 50 accounts)
+//   threads:        default is the number of available processors (stress uses at least 8)
+// Every line reports wall time per operation, heap bytes allocated per operation and the
+// collections (count and time) that happened while it ran, so it doubles as the regression
+// baseline for changes to BankingApplication.java.
+public class BankingBenchmark {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 10;
+    private static final int POSTINGS = 1_000_000;
+    private static final int LOOKUPS_PER_ROUND = 1_000_000;
+    private static final int HOT_ACCOUNTS = 16;
+    private static final int STRESS_ACCOUNTS = 50;
+    private static final int STRESS_OPS = 300_000;
+    private static final long STRESS_OPENING_BALANCE = 1_000_000;
+    private static final int HISTORY_ACCOUNTS = 10_000;
+    private static final int ACCRUAL_RUNS = 4;
+
+    // Keeps results alive so the JIT cannot drop the measured work
+    static volatile long sink;
+
+    public static void main(String[] args) throws IOException {
+        String suite = args.length > 0 ? args[0] : "all";
+        int[] sizes = {1_000, 100_000, 10_000_000};
+        if (args.length > 1) {
+            String[] parts = args[1].split(",");
+            sizes = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                sizes[i] = Integer.parseInt(parts[i].trim());
+            }
+        }
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        if (suite.equals("all") || suite.equals("money")) {
+            moneyBenchmarks();
+        }
+        if (suite.equals("all") || suite.equals("store")) {
+            for (int size : sizes) {
+                storeBenchmarks(size, threads);
+            }
+        }
+        if (suite.equals("all") || suite.equals("transfer")) {
+            for (int size : sizes) {
+                transferBenchmarks(size, threads);
+            }
+        }
+        if (suite.equals("all") || suite.equals("accrual")) {
+            for (int size : sizes) {
+                accrualBenchmark(size);
+            }
+            accrualHistoryCheck(HISTORY_ACCOUNTS);
+        }
+        if (suite.equals("all") || suite.equals("stress")) {
+            for (int stripes : new int[] {2, 64}) {
+                stressCheck(stripes + " stripes", new TransactionEngine(new AccountRepository(STRESS_ACCOUNTS), null, null, stripes),
+                        Math.max(threads, 8), STRESS_OPS);
+            }
+            journaledStressCheck(Math.max(threads, 8));
+        }
+    }
+
+    // Random deposits, withdrawals and transfers from many threads over a few accounts, mixed with
+    // calls that must be rejected: the same account on both sides, a zero or negative amount and an
+    // unknown account. Fails unless every call got an allowed result, no balance went negative and
+    // the money in the store equals the opening total plus deposits minus withdrawals.
+    // Odd accounts have no contact details, which journal and snapshot must both carry.
+    static void stressCheck(String label, TransactionEngine engine, int threads, int ops) {
+        System.out.println("\n--- Stress, " + threads + " threads over " + STRESS_ACCOUNTS + " accounts, " + label + " ---");
+        for (int i = 0; i < STRESS_ACCOUNTS; i++) {
+            String contact = i % 2 == 0 ? "" : null;
+            engine.open(new Account(1000 + i, "stress", STRESS_OPENING_BALANCE, contact, contact));
+        }
+        int missing = 1000 + STRESS_ACCOUNTS;
+        LongAdder net = new LongAdder();
+        LongAdder moved = new LongAdder();
+        AtomicReference<String> failure = new AtomicReference<>();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            workers[t] = new Thread(() -> {
+                int seed = (id + 1) * 0x9E3779B9 | 1;
+                for (int i = 0; i < ops && failure.get() == null; i++) {
+                    seed = xorshift(seed);
+                    int from = 1000 + (seed >>> 8) % STRESS_ACCOUNTS;
+                    int to = 1000 + (seed >>> 20) % STRESS_ACCOUNTS;
+                    if (to == from) {
+                        to = from == 1000 ? 1001 : from - 1;
+                    }
+                    long amount = 1 + (seed >>> 1) % 5_000;
+                    switch (seed & 15) {
+                        case 0:
+                            if (expect(engine.deposit(from, amount), failure, "deposit", TxResult.OK, TxResult.OK)) {
+                                net.add(amount);
+                            }
+                            break;
+                        case 1:
+                            if (expect(engine.withdraw(from, amount), failure, "withdraw", TxResult.OK, TxResult.INSUFFICIENT_FUNDS)) {
+                                net.add(-amount);
+                            }
+                            break;
+                        case 2:
+                            expect(engine.transfer(from, from, amount), failure, "same account", TxResult.SAME_ACCOUNT, TxResult.SAME_ACCOUNT);
+                            break;
+                        case 3:
+                            expect(engine.transfer(from, to, (seed & 16) == 0 ? 0 : -amount),
+                                    failure, "bad amount", TxResult.INVALID_AMOUNT, TxResult.INVALID_AMOUNT);
+                            break;
+                        case 4:
+                            expect(engine.transfer((seed & 16) == 0 ? from : missing, (seed & 16) == 0 ? missing : to, amount),
+                                    failure, "unknown account", TxResult.ACCOUNT_NOT_FOUND, TxResult.ACCOUNT_NOT_FOUND);
+                            break;
+                        default:
+                            if (expect(engine.transfer(from, to, amount), failure, "transfer", TxResult.OK, TxResult.INSUFFICIENT_FUNDS)) {
+                                moved.add(amount);
+                            }
+                            break;
+                    }
+                }
+            }, "stress-" + t);
+        }
+        long begin = System.nanoTime();
+        for (Thread w : workers) {
+            w.start();
+        }
+        try {
+            for (Thread w : workers) {
+                w.join();
+            }
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+        long elapsed = System.nanoTime() - begin;
+        long total = 0;
+        for (int i = 0; i < STRESS_ACCOUNTS; i++) {
+            long balance = engine.balance(1000 + i);
+            if (balance < 0) {
+                failure.compareAndSet(null, "account " + (1000 + i) + " went negative: " + balance);
+            }
+            total += balance;
+        }
+        long expected = STRESS_ACCOUNTS * STRESS_OPENING_BALANCE + net.sum();
+        if (total != expected) {
+            failure.compareAndSet(null, "total " + Money.format(total) + " but expected " + Money.format(expected));
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("Stress check failed: " + failure.get());
+        }
+        System.out.printf("%-28s %12.0f ops/s  total %s conserved, %s transferred%n", "mixed x" + threads,
+                (double) ops * threads / elapsed * 1e9, Money.format(total), Money.format(moved.sum()));
+    }
+
+    // The stress mix against a journaled engine that checkpoints every 2000 records while the threads
+    // run, then a recovery from disk that must reproduce every balance
+    static void journaledStressCheck(int threads) throws IOException {
+        Path dir = Files.createTempDirectory("bank-stress");
+        try {
+            AccountRepository accounts = new AccountRepository(STRESS_ACCOUNTS);
+            TransactionJournal journal = TransactionJournal.open(dir, 1, 2_000);
+            journal.recover(accounts);
+            try (TransactionEngine engine = new TransactionEngine(accounts, journal, null, 64)) {
+                stressCheck("journal, snapshot every 2000 records", engine, threads, STRESS_OPS / 100);
+            }
+            AccountRepository recovered = new AccountRepository(STRESS_ACCOUNTS);
+            try (TransactionJournal again = TransactionJournal.open(dir)) {
+                again.recover(recovered);
+            }
+            for (int i = 0; i < STRESS_ACCOUNTS; i++) {
+                Account want = accounts.get(1000 + i);
+                Account got = recovered.get(1000 + i);
+                if (got == null || got.getBalance() != want.getBalance() || !Objects.equals(got.getEmail(), want.getEmail())) {
+                    throw new IllegalStateException("Stress check failed: account " + (1000 + i) + " recovered as "
+                            + (got == null ? "missing" : Money.format(got.getBalance()) + " / " + got.getEmail())
+                            + ", expected " + Money.format(want.getBalance()) + " / " + want.getEmail());
+                }
+            }
+            System.out.printf("%-28s %d accounts recovered from disk intact%n", "recovery", recovered.size());
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    // True if the result was OK; records a failure if it was neither of the allowed results
+    private static boolean expect(TxResult result, AtomicReference<String> failure, String op, TxResult allowed, TxResult alsoAllowed) {
+        if (result != allowed && result != alsoAllowed) {
+            failure.compareAndSet(null, op + " returned " + result);
+        }
+        return result == TxResult.OK;
+    }
+
+    // Month-end sweep over the whole store on the common fork/join pool
+    static void accrualBenchmark(int size) {
+        System.out.println("\n--- Accrual sweep, " + size + " accounts ---");
+        AccountRepository accounts = new AccountRepository(size);
+        TransactionEngine engine = new TransactionEngine(accounts);
+        for (int i = 0; i < size; i++) {
+            accounts.add(new Account(1000 + i, "bench", (i % 10) * 50_000L, "", ""));
+        }
+        AccrualEngine accrual = new AccrualEngine(accounts, engine);
+        AccrualRates rates = new AccrualRates(25, 100_000, 5_000);
+        measure("accrue (per account)", size, () -> accrual.run(rates).accounts());
+    }
+
+    // Month-end runs the way --accrue does them: open the journal and history, sweep, close. Fails if a run
+    // grows bank.history by more than its postings plus one chunk header per account, or if the statements
+    // read back afterwards do not hold every posting the runs made.
+    static void accrualHistoryCheck(int size) throws IOException {
+        System.out.println("\n--- Accrual runs against bank.history, " + size + " accounts ---");
+        Path dir = Files.createTempDirectory("bank-history");
+        try {
+            AccountRepository accounts = new AccountRepository(size);
+            try (TransactionJournal journal = TransactionJournal.open(dir)) {
+                journal.recover(accounts);
+                try (TransactionEngine engine = new TransactionEngine(accounts, journal, StatementHistory.open(dir, accounts))) {
+                    for (int i = 0; i < size; i++) {
+                        engine.open(new Account(1000 + i, "bench", (i % 10) * 50_000L, null, null));
+                    }
+                }
+            }
+            Path file = dir.resolve(StatementHistory.SPILL_FILE);
+            long previous = Files.size(file);
+            AccrualRates rates = new AccrualRates(25, 100_000, 5_000);
+            long posted = 0;
+            for (int run = 1; run <= ACCRUAL_RUNS; run++) {
+                AccountRepository reopened = new AccountRepository(size);
+                long start = System.nanoTime();
+                AccrualReport report;
+                try (TransactionJournal journal = TransactionJournal.open(dir)) {
+                    journal.recover(reopened);
+                    try (TransactionEngine engine = new TransactionEngine(reopened, journal, StatementHistory.open(dir, reopened))) {
+                        report = new AccrualEngine(reopened, engine).run(rates);
+                    }
+                }
+                long grown = Files.size(file) - previous;
+                long bound = report.postings() * (4 * 8 + 1) + size * 8L;
+                System.out.printf("%-28s %10.2f ms  +%d bytes for %d postings (bound %d)%n", "open/accrue/close " + run,
+                        (System.nanoTime() - start) / 1e6, grown, report.postings(), bound);
+                if (grown > bound) {
+                    throw new IllegalStateException("bank.history grew " + grown + " bytes in run " + run + ", more than " + bound);
+                }
+                previous += grown;
+                posted += report.postings();
+            }
+            AccountRepository reopened = new AccountRepository(size);
+            try (TransactionJournal journal = TransactionJournal.open(dir)) {
+                journal.recover(reopened);
+                try (StatementHistory history = StatementHistory.open(dir, reopened)) {
+                    long found = 0;
+                    for (int i = 0; i < size; i++) {
+                        found += history.last(reopened.get(1000 + i), Integer.MAX_VALUE).size();
+                    }
+                    if (found != posted) {
+                        throw new IllegalStateException("statements hold " + found + " postings after " + ACCRUAL_RUNS
+                                + " runs, expected " + posted);
+                    }
+                }
+            }
+            System.out.printf("%-28s %d postings read back, %d bytes%n", "history after reopen", posted, previous);
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    // findAccount, deposit, withdraw and account creation against an in-memory engine
+    static void storeBenchmarks(int size, int threads) {
+        System.out.println("\n--- Account store, " + size + " accounts ---");
+        AccountRepository accounts = new AccountRepository(size);
+        TransactionEngine engine = new TransactionEngine(accounts);
+        for (int i = 0; i < size; i++) {
+            accounts.add(new Account(1000 + i, "bench", 1_000_000_000L, "bench@example.com", "0000000000"));
+        }
+
+        int[] threadCounts = threads > 1 ? new int[] {1, threads} : new int[] {1};
+        for (int t : threadCounts) {
+            measure("findAccount x" + t, t, LOOKUPS_PER_ROUND, () -> {
+                int seed = (int) System.nanoTime() | 1;
+                long found = 0;
+                for (int i = 0; i < LOOKUPS_PER_ROUND; i++) {
+                    seed = xorshift(seed);
+                    found += accounts.get(1000 + (seed & 0x7FFFFFFF) % size).getAccountNumber();
+                }
+                return found;
+            });
+            measure("deposit x" + t, t, LOOKUPS_PER_ROUND, () -> {
+                int seed = (int) System.nanoTime() | 1;
+                long ok = 0;
+                for (int i = 0; i < LOOKUPS_PER_ROUND; i++) {
+                    seed = xorshift(seed);
+                    ok += engine.deposit(1000 + (seed & 0x7FFFFFFF) % size, 100).ordinal();
+                }
+                return ok;
+            });
+            measure("withdraw x" + t, t, LOOKUPS_PER_ROUND, () -> {
+                int seed = (int) System.nanoTime() | 1;
+                long ok = 0;
+                for (int i = 0; i < LOOKUPS_PER_ROUND; i++) {
+                    seed = xorshift(seed);
+                    ok += engine.withdraw(1000 + (seed & 0x7FFFFFFF) % size, 100).ordinal();
+                }
+                return ok;
+            });
+        }
+
+        // creation: each op builds a fresh store of this size from empty
+        int creates = Math.min(size, 1_000_000);
+        measure("create account x1", 1, creates, () -> {
+            AccountRepository fresh = new AccountRepository();
+            TransactionEngine freshEngine = new TransactionEngine(fresh);
+            for (int i = 0; i < creates; i++) {
+                freshEngine.open(new Account(1000 + i, "bench", 0, "bench@example.com", "0000000000"));
+            }
+            return fresh.size();
+        });
+    }
+
+    // engine.transfer under contention: uniform pairs across the whole store, where two threads rarely
+    // meet, against pairs drawn from 16 hot accounts that every thread fights over, each with the
+    // default stripe count and with only 4 stripes
+    static void transferBenchmarks(int size, int threads) {
+        System.out.println("\n--- Transfers, " + size + " accounts ---");
+        AccountRepository accounts = new AccountRepository(size);
+        for (int i = 0; i < size; i++) {
+            accounts.add(new Account(1000 + i, "bench", 1_000_000_000L, "", ""));
+        }
+        int[] threadCounts = threads > 1 ? new int[] {1, threads} : new int[] {1};
+        for (int stripes : new int[] {Runtime.getRuntime().availableProcessors() * 16, 4}) {
+            TransactionEngine engine = new TransactionEngine(accounts, null, null, stripes);
+            for (int t : threadCounts) {
+                for (int range : new int[] {size, Math.min(size, HOT_ACCOUNTS)}) {
+                    String name = (range == size ? "uniform" : "hot " + range) + ", " + stripes + " stripes x" + t;
+                    measure(name, t, LOOKUPS_PER_ROUND, () -> {
+                        int seed = (int) System.nanoTime() | 1;
+                        long ok = 0;
+                        for (int i = 0; i < LOOKUPS_PER_ROUND; i++) {
+                            seed = xorshift(seed);
+                            int from = (seed & 0x7FFFFFFF) % range;
+                            int to = (from + 1 + (seed >>> 16) % (range - 1)) % range;
+                            ok += engine.transfer(1000 + from, 1000 + to, 100).ordinal();
+                        }
+                        return ok;
+                    });
+                }
+            }
+        }
+    }
+
+    private static int xorshift(int x) {
+        x ^= x << 13;
+        x ^= x >>> 17;
+        return x ^ (x << 5);
+    }
+
+    // Balance arithmetic in double, long minor units and BigDecimal, each as a bare local with the same
+    // deposit-then-guarded-withdraw loop, so only the representation differs. Stands in for the JMH
+    // comparison (java -cp out BankingBenchmark money) and fails if long and BigDecimal disagree or
+    // the long total drifts.
+    static void moneyBenchmarks() {
+        System.out.println("\n--- Money representation (" + POSTINGS + " postings per op) ---");
+        Random rnd = new Random(42);
+        long[] cents = new long[POSTINGS];
+        double[] amounts = new double[POSTINGS];
+        BigDecimal[] decimals = new BigDecimal[POSTINGS];
+        for (int i = 0; i < POSTINGS; i++) {
+            cents[i] = 1 + rnd.nextInt(100_000);
+            amounts[i] = cents[i] / 100.0;
+            decimals[i] = BigDecimal.valueOf(cents[i], 2);
+        }
+
+        measure("double balance", POSTINGS, () -> {
+            double balance = 0;
+            for (int i = 0; i < POSTINGS; i++) {
+                balance += amounts[i];
+                if (balance >= amounts[i] / 2) {
+                    balance -= amounts[i] / 2;
+                }
+            }
+            return (long) balance;
+        });
+        LongSupplier minorUnits = () -> {
+            long balance = 0;
+            for (int i = 0; i < POSTINGS; i++) {
+                balance += cents[i];
+                if (balance >= cents[i] / 2) {
+                    balance -= cents[i] / 2;
+                }
+            }
+            return balance;
+        };
+        LongSupplier bigDecimal = () -> {
+            BigDecimal balance = BigDecimal.ZERO;
+            BigDecimal two = BigDecimal.valueOf(2);
+            for (int i = 0; i < POSTINGS; i++) {
+                balance = balance.add(decimals[i]);
+                BigDecimal half = decimals[i].divide(two, 2, java.math.RoundingMode.DOWN);
+                if (balance.compareTo(half) >= 0) {
+                    balance = balance.subtract(half);
+                }
+            }
+            return balance.unscaledValue().longValue();
+        };
+        measure("long minor units", POSTINGS, minorUnits);
+        measure("BigDecimal balance", POSTINGS, bigDecimal);
+        if (minorUnits.getAsLong() != bigDecimal.getAsLong()) {
+            throw new IllegalStateException("long balance " + minorUnits.getAsLong() + " != BigDecimal balance " + bigDecimal.getAsLong());
+        }
+
+        // rounding drift after ten million 0.10 deposits
+        double d = 0;
+        long c = 0;
+        for (int i = 0; i < 10_000_000; i++) {
+            d += 0.10;
+            c += 10;
+        }
+        System.out.println("Drift after 10M x 0.10: double = " + d + ", long = " + Money.format(c));
+        if (c != 100_000_000L) {
+            throw new IllegalStateException("long minor units drifted: " + Money.format(c));
+        }
+    }
+
+    static void measure(String name, long opsPerRound, LongSupplier body) {
+        measure(name, 1, opsPerRound, body);
+    }
+
+    // Runs the body on the given number of threads at once and prints throughput, time per
+    // operation, heap allocation per operation and the GC activity seen during the measured rounds
+    static void measure(String name, int threads, long opsPerRound, LongSupplier body) {
+        CyclicBarrier start = new CyclicBarrier(threads + 1);
+        CyclicBarrier warmedUp = new CyclicBarrier(threads + 1);
+        CyclicBarrier done = new CyclicBarrier(threads + 1);
+        AtomicLong bytes = new AtomicLong();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                        sink += body.getAsLong();
+                    }
+                    warmedUp.await();
+                    long before = allocatedBytes();
+                    for (int i = 0; i < MEASURED_ROUNDS; i++) {
+                        sink += body.getAsLong();
+                    }
+                    bytes.addAndGet(allocatedBytes() - before);
+                    done.await();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }, "bench-" + t);
+            worker.start();
+        }
+        try {
+            start.await();
+            warmedUp.await();
+            long gcCountBefore = gcCount();
+            long gcMillisBefore = gcMillis();
+            long begin = System.nanoTime();
+            done.await();
+            long elapsed = System.nanoTime() - begin;
+            double ops = (double) opsPerRound * MEASURED_ROUNDS * threads;
+            System.out.printf("%-28s %8.2f Mops/s %10.2f ns/op %8.2f B/op  gc %d (%d ms)%n",
+                    name, ops / elapsed * 1e3, elapsed * threads / ops, bytes.get() / ops,
+                    gcCount() - gcCountBefore, gcMillis() - gcMillisBefore);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    // Bytes allocated so far by the calling thread, or 0 if the JVM cannot report it
+    static long allocatedBytes() {
+        java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        if (mx instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) mx).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
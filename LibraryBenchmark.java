@@ -0,0 +1,928 @@
+import java.io.IOException;
+import java.io.BufferedWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+// Benchmarks for LibraryManager.java
+// Compile together with it:  javac LibraryManager.java LibraryBenchmark.java
+// Run:                       java -Xmx4g LibraryBenchmark [suite] [book counts] [threads]
+//   suite:       all | persist | load | search | sort | circulation | members | codec | paged | due | import | service
+//   book counts: comma separated, default 1000,100000,1000000 (use 5000000 for the startup figure)
+//   threads:     desks for the circulation suite and kiosks for the service suite (at least 16 there),
+//                default is the number of available processors
+// Each library is built in a fresh temporary directory which is deleted afterwards.
+public class LibraryBenchmark {
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURED_ROUNDS = 5;
+    private static final int MUTATIONS_PER_ROUND = 10_000;
+    private static final int SERVICE_REQUESTS = 20_000;
+
+    // Keeps results alive so the JIT cannot drop the measured work
+    static volatile long sink;
+
+    public static void main(String[] args) throws IOException {
+        String suite = args.length > 0 ? args[0] : "all";
+        int[] sizes = {1_000, 100_000, 1_000_000};
+        if (args.length > 1) {
+            String[] parts = args[1].split(",");
+            sizes = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                sizes[i] = Integer.parseInt(parts[i].trim());
+            }
+        }
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        if (suite.equals("all") || suite.equals("persist")) {
+            for (int size : sizes) {
+                persistBenchmarks(size);
+            }
+        }
+        if (suite.equals("all") || suite.equals("load")) {
+            for (int size : sizes) {
+                loadBenchmarks(size);
+            }
+        }
+        if (suite.equals("all") || suite.equals("search")) {
+            for (int size : sizes) {
+                searchBenchmarks(size);
+            }
+        }
+        if (suite.equals("all") || suite.equals("sort")) {
+            for (int size : sizes) {
+                sortBenchmarks(size);
+            }
+        }
+        if (suite.equals("all") || suite.equals("circulation")) {
+            for (int size : sizes) {
+                circulationBenchmarks(size, threads);
+            }
+        }
+        if (suite.equals("all") || suite.equals("members")) {
+            for (int size : sizes) {
+                memberBenchmarks(size);
+            }
+        }
+        if (suite.equals("all") || suite.equals("paged")) {
+            for (int size : sizes) {
+                pagedBenchmarks(size);
+            }
+        }
+        if (suite.equals("all") || suite.equals("due")) {
+            for (int size : sizes) {
+                dueBenchmarks(size);
+            }
+        }
+        if (suite.equals("all") || suite.equals("import")) {
+            for (int size : sizes) {
+                importBenchmarks(size);
+            }
+        }
+        if (suite.equals("all") || suite.equals("service")) {
+            for (int size : sizes) {
+                serviceBenchmarks(size, threads);
+            }
+        }
+        if (suite.equals("all") || suite.equals("codec")) {
+            codecRoundTrip(200_000);
+            codecBenchmarks(100_000);
+        }
+    }
+
+    // Cost of making one mutation durable: appending to the change log versus rewriting books.txt
+    // and members.txt as the old code did after every add/issue/return
+    static void persistBenchmarks(int size) throws IOException {
+        System.out.println("\n--- Persistence, " + size + " books ---");
+        Path dir = tempDir();
+        try {
+            LibraryManager lm = new LibraryManager(dir);
+            lm.load();
+            long start = System.nanoTime();
+            for (int i = 0; i < size; i++) {
+                lm.addBook("Title " + i, "Author " + (i % 5000), "Category " + (i % 50));
+            }
+            System.out.printf("%-28s %10.2f ms%n", "build catalog", (System.nanoTime() - start) / 1e6);
+
+            measure("addBook + log append", MUTATIONS_PER_ROUND, () -> {
+                long ids = 0;
+                for (int i = 0; i < MUTATIONS_PER_ROUND; i++) {
+                    ids += lm.addBook("New title", "New author", "New category").bookId;
+                }
+                return ids;
+            });
+            measure("binary snapshot", 1, () -> {
+                lm.snapshot();
+                return 1;
+            });
+            measure("full text rewrite", 1, () -> {
+                lm.saveToFile();
+                return 1;
+            });
+            lm.snapshot();
+
+            start = System.nanoTime();
+            LibraryManager reloaded = new LibraryManager(dir);
+            reloaded.load();
+            System.out.printf("%-28s %10.2f ms (%d books)%n", "reload snapshot + log",
+                    (System.nanoTime() - start) / 1e6, reloaded.bookCount());
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    // Startup from books.txt / members.txt: the old readAllLines + regex split path against the
+    // streaming parallel loader, with wall time and peak heap for each
+    static void loadBenchmarks(int size) throws IOException {
+        System.out.println("\n--- Text load, " + size + " books, " + size / 10 + " members ---");
+        Path dir = tempDir();
+        try {
+            try (BufferedWriter bw = Files.newBufferedWriter(dir.resolve("books.txt"))) {
+                for (int i = 0; i < size; i++) {
+                    Book b = new Book(100 + i, "Title " + i, "Author " + (i % 5000), "Category " + (i % 50));
+                    if (i % 3 == 0) {
+                        b.markAsIssued();
+                    }
+                    bw.write(b.toCSV() + "\n");
+                }
+            }
+            try (BufferedWriter bw = Files.newBufferedWriter(dir.resolve("members.txt"))) {
+                for (int i = 0; i < size / 10; i++) {
+                    Member m = new Member(200 + i, "Member " + i, "m" + i + "@example.com");
+                    m.issuedBooks.add(100 + i * 3);
+                    m.issuedBooks.add(103 + i * 3);
+                    bw.write(m.toCSV() + "\n");
+                }
+            }
+            System.out.printf("%-28s %10.1f MB%n", "books.txt size", Files.size(dir.resolve("books.txt")) / 1e6);
+
+            for (int round = 0; round < 2; round++) {
+                System.gc();
+                resetPeakHeap();
+                long start = System.nanoTime();
+                Map<Integer, Book> books = new HashMap<>();
+                for (String line : Files.readAllLines(dir.resolve("books.txt"))) {
+                    Book b = legacyBook(line);
+                    books.put(b.bookId, b);
+                }
+                Map<Integer, Member> members = new HashMap<>();
+                for (String line : Files.readAllLines(dir.resolve("members.txt"))) {
+                    Member m = legacyMember(line);
+                    members.put(m.memberId, m);
+                }
+                report("readAllLines + split", start, books.size());
+                books = null;
+                members = null;
+
+                System.gc();
+                resetPeakHeap();
+                start = System.nanoTime();
+                LibraryManager lm = new LibraryManager(dir);
+                lm.loadFromFile();
+                report("streaming parallel loader", start, lm.bookCount());
+            }
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    // Catalog search: the old lowercase + contains scan against the inverted index, for a whole-word,
+    // a prefix, a substring and a two-word AND query
+    static void searchBenchmarks(int size) throws IOException {
+        System.out.println("\n--- Search, " + size + " books ---");
+        Path dir = tempDir();
+        try {
+            LibraryManager lm = new LibraryManager(dir);
+            lm.load();
+            Random rnd = new Random(42);
+            for (int i = 0; i < size; i++) {
+                lm.addBook(word(rnd) + " " + word(rnd) + " " + word(rnd), word(rnd) + " " + word(rnd), word(rnd));
+            }
+            String[] queries = {"kalomi", "kalo", "lomi", "kalomi tesu"};
+            for (String q : queries) {
+                measure("scan \"" + q + "\"", 1, () -> {
+                    long hits = 0;
+                    for (Book b : lm.allBooks()) {
+                        if (b.title.toLowerCase().contains(q)) {
+                            hits++;
+                        }
+                    }
+                    return hits;
+                });
+                measure("index \"" + q + "\"", 1, () -> lm.searchBooks(q, CatalogIndex.TITLE).size());
+            }
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    // Books 1000-1050 by author: copy + sort with toLowerCase() in the comparator, as sortBooksMenu
+    // used to, against a page read from the maintained view
+    static void sortBenchmarks(int size) throws IOException {
+        System.out.println("\n--- Sorted listing, " + size + " books ---");
+        Path dir = tempDir();
+        try {
+            LibraryManager lm = new LibraryManager(dir);
+            lm.load();
+            Random rnd = new Random(42);
+            long start = System.nanoTime();
+            for (int i = 0; i < size; i++) {
+                lm.addBook(word(rnd) + " " + word(rnd), word(rnd) + " " + word(rnd), word(rnd));
+            }
+            System.out.printf("%-28s %10.2f ms%n", "build catalog + views", (System.nanoTime() - start) / 1e6);
+            measure("sort copy, page 1000-1050", 1, () -> {
+                List<Book> list = new ArrayList<>(lm.allBooks());
+                list.sort(Comparator.comparing(b -> b.author.toLowerCase()));
+                return list.subList(Math.min(999, list.size()), Math.min(1050, list.size())).size();
+            });
+            measure("view, page 1000-1050", 1000, () -> {
+                long n = 0;
+                for (int i = 0; i < 1000; i++) {
+                    n += lm.sortedBooks(2, 999 + (i & 63), 51).size();
+                }
+                return n;
+            });
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    // Issue + return pairs, each desk on its own slice of the catalog, then every desk contending for
+    // the same 16 books so the wait queues and hand-offs are exercised
+    static void circulationBenchmarks(int size, int threads) throws IOException {
+        System.out.println("\n--- Circulation, " + size + " books ---");
+        Path dir = tempDir();
+        try {
+            LibraryManager lm = new LibraryManager(dir);
+            lm.load();
+            for (int i = 0; i < size; i++) {
+                lm.addBook("Title " + i, "Author", "Category");
+            }
+            int members = Math.max(threads * 2, 64);
+            for (int i = 0; i < members; i++) {
+                lm.addMember("Member " + i, "member" + i + "@example.com");
+            }
+            int[] desks = threads > 1 ? new int[] {1, threads} : new int[] {1};
+            for (int t : desks) {
+                AtomicInteger desk = new AtomicInteger();
+                measure("issue+return x" + t, t, MUTATIONS_PER_ROUND, () -> {
+                    int d = desk.getAndIncrement() % t;
+                    int slice = size / t;
+                    long ok = 0;
+                    for (int i = 0; i < MUTATIONS_PER_ROUND; i++) {
+                        int book = 100 + d * slice + i % slice;
+                        int member = 200 + d;
+                        ok += lm.issue(book, member).result.ordinal();
+                        ok += lm.returnBook(book, member).result.ordinal();
+                    }
+                    return ok;
+                });
+                measure("contended 16 books x" + t, t, MUTATIONS_PER_ROUND, () -> {
+                    int seed = (int) System.nanoTime() | 1;
+                    long ok = 0;
+                    for (int i = 0; i < MUTATIONS_PER_ROUND; i++) {
+                        seed ^= seed << 13; seed ^= seed >>> 17; seed ^= seed << 5;
+                        int book = 100 + (seed & 15);
+                        int member = 200 + ((seed >>> 4) & 0x7FFFFFFF) % members;
+                        ok += (seed & 0x100) == 0 ? lm.issue(book, member).result.ordinal()
+                                : lm.returnBook(book, member).result.ordinal();
+                    }
+                    return ok;
+                });
+            }
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    // The catalog held on the heap against the paged catalog caching a tenth of it: retained heap after
+    // loading, then issue + return and search where 80% of the traffic goes to 10% of the books
+    static void pagedBenchmarks(int size) throws IOException {
+        System.out.println("\n--- Paged catalog, " + size + " books, cache " + Math.max(1, size / 10) + " ---");
+        for (int cached : new int[] {0, Math.max(1, size / 10)}) {
+            Path dir = tempDir();
+            try {
+                String mode = cached == 0 ? "heap" : "paged";
+                long before = usedHeap();
+                LibraryManager lm = new LibraryManager(dir, cached);
+                lm.load();
+                Random rnd = new Random(42);
+                for (int i = 0; i < size; i++) {
+                    lm.addBook(word(rnd) + " " + word(rnd) + " " + i, "Author " + word(rnd), "Category " + (i % 50));
+                }
+                for (int i = 0; i < 64; i++) {
+                    lm.addMember("Member " + i, "member" + i + "@example.com");
+                }
+                System.out.printf("%-28s %10.1f B/book%n", mode + " retained heap", (double) (usedHeap() - before) / size);
+
+                int hot = Math.max(1, size / 10);
+                measure(mode + " issue+return", MUTATIONS_PER_ROUND, () -> {
+                    int seed = (int) System.nanoTime() | 1;
+                    long ok = 0;
+                    for (int i = 0; i < MUTATIONS_PER_ROUND; i++) {
+                        seed ^= seed << 13; seed ^= seed >>> 17; seed ^= seed << 5;
+                        int r = seed & 0x7FFFFFFF;
+                        int book = 100 + (r % 5 != 0 ? r % hot : r % size);
+                        int member = 200 + (r >>> 8) % 64;
+                        ok += lm.issue(book, member).result.ordinal();
+                        ok += lm.returnBook(book, member).result.ordinal();
+                    }
+                    return ok;
+                });
+                measure(mode + " search \"" + "kalo\"", 1, () -> lm.searchBooks("kalo", CatalogIndex.TITLE).size());
+                PagedCatalog paged = lm.pagedCatalog();
+                if (paged != null) {
+                    System.out.println(paged.stats());
+                }
+                lm.close();
+            } finally {
+                deleteTree(dir);
+            }
+        }
+    }
+
+    // Due-date queries over 'size' loans spread from a week overdue to two weeks out: a scan of every
+    // loan, as a due date stored on Book would need, against the DueDates order. The reminder tick is
+    // the per-menu check, which finds the loans that went overdue in the last minute.
+    static void dueBenchmarks(int size) {
+        System.out.println("\n--- Due dates, " + size + " loans ---");
+        long now = System.currentTimeMillis();
+        long day = 24L * 60 * 60 * 1000;
+        Random rnd = new Random(23);
+        Map<Integer, Long> scanned = new HashMap<>();
+        long[] dueAt = new long[size];
+        for (int i = 0; i < size; i++) {
+            dueAt[i] = now - 7 * day + (long) (rnd.nextDouble() * 21 * day);
+            scanned.put(100 + i, dueAt[i]);
+        }
+        long start = System.nanoTime();
+        DueDates due = new DueDates();
+        for (int i = 0; i < size; i++) {
+            due.put(100 + i, dueAt[i]);
+        }
+        System.out.printf("%-28s %10.2f ms%n", "rebuild index", (System.nanoTime() - start) / 1e6);
+
+        measure("scan: overdue now", 1, () -> scan(scanned, 0, now).size());
+        measure("index: overdue now", 1, () -> due.overdue(now).size());
+        measure("scan: due in 24h", 1, () -> scan(scanned, now, now + day).size());
+        measure("index: due in 24h", 1, () -> due.dueBetween(now, now + day).size());
+        measure("index: due in next minute", 1, () -> due.dueBetween(now, now + 60_000).size());
+        measure("issue+return (put+remove)", MUTATIONS_PER_ROUND, () -> {
+            for (int i = 0; i < MUTATIONS_PER_ROUND; i++) {
+                int id = 100 + i % size;
+                long at = due.dueOf(id);
+                due.remove(id);
+                due.put(id, at);
+            }
+            return due.size();
+        });
+        System.out.println("overdue " + due.overdue(now).size() + ", due in 24h " + due.dueBetween(now, now + day).size());
+    }
+
+    // Ids of the loans due in [from, to), earliest first, found by looking at every loan
+    private static List<Integer> scan(Map<Integer, Long> loans, long from, long to) {
+        List<Map.Entry<Integer, Long>> hits = new ArrayList<>();
+        for (Map.Entry<Integer, Long> e : loans.entrySet()) {
+            if (e.getValue() >= from && e.getValue() < to) {
+                hits.add(e);
+            }
+        }
+        hits.sort(Map.Entry.comparingByValue());
+        List<Integer> ids = new ArrayList<>(hits.size());
+        for (Map.Entry<Integer, Long> e : hits) {
+            ids.add(e.getKey());
+        }
+        return ids;
+    }
+
+    // Onboarding a publisher feed: one addBook call per line against importBooks on the whole file,
+    // each into a fresh persisted library, with wall time and peak heap
+    static void importBenchmarks(int size) throws IOException {
+        System.out.println("\n--- Bulk import, " + size + " books ---");
+        Path feedDir = tempDir();
+        try {
+            Path feed = feedDir.resolve("feed.txt");
+            Random rnd = new Random(24);
+            List<String[]> rows = new ArrayList<>(size);
+            try (BufferedWriter bw = Files.newBufferedWriter(feed)) {
+                for (int i = 0; i < size; i++) {
+                    String[] row = {word(rnd) + " " + word(rnd) + " " + word(rnd), "Author " + word(rnd), "Category " + (i % 50)};
+                    rows.add(row);
+                    bw.write(row[0] + "|" + row[1] + "|" + row[2] + "\n");
+                }
+            }
+            for (int round = 0; round < 2; round++) {
+                Path dir = tempDir();
+                try {
+                    System.gc();
+                    resetPeakHeap();
+                    long start = System.nanoTime();
+                    LibraryManager lm = new LibraryManager(dir);
+                    lm.load();
+                    for (String[] row : rows) {
+                        lm.addBook(row[0], row[1], row[2]);
+                    }
+                    report("addBook per line", start, lm.bookCount());
+                    lm.close();
+                } finally {
+                    deleteTree(dir);
+                }
+                dir = tempDir();
+                try {
+                    System.gc();
+                    resetPeakHeap();
+                    long start = System.nanoTime();
+                    LibraryManager lm = new LibraryManager(dir);
+                    lm.load();
+                    lm.importBooks(feed);
+                    report("importBooks", start, lm.bookCount());
+                    lm.close();
+                } finally {
+                    deleteTree(dir);
+                }
+            }
+        } finally {
+            deleteTree(feedDir);
+        }
+    }
+
+    // Kiosks calling LibraryService over loopback: each kiosk is a thread sending one request at a time
+    // on a kept-alive connection, and every request's latency is recorded for the percentiles. This is
+    // a closed loop, so a stall delays a kiosk's next request rather than queueing more behind it; p99
+    // and p999 are therefore a lower bound for kiosks that keep sending on a timer regardless.
+    static void serviceBenchmarks(int size, int threads) throws IOException {
+        System.out.println("\n--- HTTP service, " + size + " books ---");
+        Path dir = tempDir();
+        LibraryManager lm = new LibraryManager(dir);
+        LibraryService service = null;
+        try {
+            lm.load();
+            Random rnd = new Random(42);
+            for (int i = 0; i < size; i++) {
+                lm.addBook(word(rnd) + " " + word(rnd) + " " + word(rnd), word(rnd) + " " + word(rnd), word(rnd));
+            }
+            int[] kiosks = {1, Math.max(threads, 16)};
+            for (int i = 0; i < kiosks[1]; i++) {
+                lm.addMember("Kiosk " + i, "kiosk" + i + "@example.com");
+            }
+            LibraryService.preferNoDelay();
+            service = new LibraryService(lm, 0);
+            service.start();
+            String base = "http://127.0.0.1:" + service.port();
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            for (int k : kiosks) {
+                kioskLoad(new String[] {"search x" + k}, k, SERVICE_REQUESTS / k, (kiosk, rec) -> {
+                    Random words = new Random(kiosk);
+                    for (int i = 0; i < SERVICE_REQUESTS / k; i++) {
+                        String q = word(words);
+                        rec.time(0, () -> get(client, base + "/books/search?q=" + q + "&limit=20"));
+                    }
+                });
+                // each kiosk lends from its own slice of the catalog and takes the book straight back
+                int slice = size / k;
+                kioskLoad(new String[] {"issue x" + k, "return x" + k}, k, SERVICE_REQUESTS / k, (kiosk, rec) -> {
+                    for (int i = 0; i < SERVICE_REQUESTS / k; i++) {
+                        String body = "{\"book\":" + (100 + kiosk * slice + i % slice) + ",\"member\":" + (200 + kiosk) + "}";
+                        rec.time(0, () -> post(client, base + "/issue", body));
+                        rec.time(1, () -> post(client, base + "/return", body));
+                    }
+                });
+            }
+        } finally {
+            if (service != null) {
+                service.close();
+            }
+            lm.close();
+            deleteTree(dir);
+        }
+    }
+
+    interface Request {
+        int send() throws IOException, InterruptedException;
+    }
+
+    interface KioskBody {
+        void run(int kiosk, Kiosk rec);
+    }
+
+    // Latencies one kiosk saw, per kind of request
+    static final class Kiosk {
+        final long[][] nanos;
+        final int[] count;
+
+        Kiosk(int kinds, int requests) {
+            nanos = new long[kinds][requests];
+            count = new int[kinds];
+        }
+
+        void time(int kind, Request request) {
+            long start = System.nanoTime();
+            int status;
+            try {
+                status = request.send();
+            } catch (IOException | InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            nanos[kind][count[kind]++] = System.nanoTime() - start;
+            if (status >= 400) {
+                throw new IllegalStateException("HTTP " + status);
+            }
+        }
+    }
+
+    // Runs the kiosks twice, the first time to warm up, and prints percentiles for each kind of request
+    // with the overall request rate of the measured run
+    static void kioskLoad(String[] kinds, int kiosks, int requests, KioskBody body) {
+        for (int round = 0; round < 2; round++) {
+            Kiosk[] recs = new Kiosk[kiosks];
+            Thread[] workers = new Thread[kiosks];
+            for (int t = 0; t < kiosks; t++) {
+                int kiosk = t;
+                recs[t] = new Kiosk(kinds.length, requests);
+                workers[t] = new Thread(() -> body.run(kiosk, recs[kiosk]), "kiosk-" + t);
+            }
+            long begin = System.nanoTime();
+            for (Thread w : workers) {
+                w.start();
+            }
+            try {
+                for (Thread w : workers) {
+                    w.join();
+                }
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            long elapsed = System.nanoTime() - begin;
+            if (round == 0) {
+                continue;
+            }
+            long total = 0;
+            for (int kind = 0; kind < kinds.length; kind++) {
+                long[] all = new long[0];
+                for (Kiosk rec : recs) {
+                    int from = all.length;
+                    all = Arrays.copyOf(all, from + rec.count[kind]);
+                    System.arraycopy(rec.nanos[kind], 0, all, from, rec.count[kind]);
+                }
+                Arrays.sort(all);
+                total += all.length;
+                System.out.printf("%-28s p50 %8.1f us  p99 %8.1f us  p999 %8.1f us  max %8.1f us%n", kinds[kind],
+                        percentile(all, 0.5) / 1e3, percentile(all, 0.99) / 1e3, percentile(all, 0.999) / 1e3, all[all.length - 1] / 1e3);
+            }
+            System.out.printf("%-28s %10.0f requests/s%n", "", total / (elapsed / 1e9));
+        }
+    }
+
+    private static long percentile(long[] sorted, double q) {
+        return sorted[Math.min(sorted.length - 1, Math.max(0, (int) Math.ceil(q * sorted.length) - 1))];
+    }
+
+    private static int get(HttpClient client, String uri) throws IOException, InterruptedException {
+        return client.send(HttpRequest.newBuilder(URI.create(uri)).GET().build(), HttpResponse.BodyHandlers.ofString()).statusCode();
+    }
+
+    private static int post(HttpClient client, String uri, String json) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(uri))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(json))
+                .build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString()).statusCode();
+    }
+
+    // Issued-books tracking per member: the old ArrayList<Integer> layout against IntSet, by retained
+    // heap and by contains/return cost. Member i holds i % 4 books (1.5 on average).
+    static void memberBenchmarks(int size) {
+        System.out.println("\n--- Issued books, " + size + " members ---");
+        List<List<Integer>> lists = new ArrayList<>(size);
+        long before = usedHeap();
+        for (int i = 0; i < size; i++) {
+            List<Integer> l = new ArrayList<>();
+            for (int k = 0; k < i % 4; k++) {
+                l.add(1000 + i * 4 + k);
+            }
+            lists.add(l);
+        }
+        long listBytes = usedHeap() - before;
+        List<IntSet> sets = new ArrayList<>(size);
+        before = usedHeap();
+        for (int i = 0; i < size; i++) {
+            IntSet s = new IntSet();
+            for (int k = 0; k < i % 4; k++) {
+                s.add(1000 + i * 4 + k);
+            }
+            sets.add(s);
+        }
+        long setBytes = usedHeap() - before;
+        System.out.printf("%-28s %10.1f B/member%n", "ArrayList<Integer>", (double) listBytes / size);
+        System.out.printf("%-28s %10.1f B/member%n", "IntSet", (double) setBytes / size);
+
+        measure("ArrayList contains+remove", size, () -> {
+            long hits = 0;
+            for (int i = 0; i < size; i++) {
+                List<Integer> l = lists.get(i);
+                Integer id = 1000 + i * 4;
+                if (l.contains(id)) {
+                    l.remove(id);
+                    l.add(id);
+                    hits++;
+                }
+            }
+            return hits;
+        });
+        measure("IntSet contains+remove", size, () -> {
+            long hits = 0;
+            for (int i = 0; i < size; i++) {
+                IntSet s = sets.get(i);
+                int id = 1000 + i * 4;
+                if (s.contains(id)) {
+                    s.remove(id);
+                    s.add(id);
+                    hits++;
+                }
+            }
+            return hits;
+        });
+        sink += lists.size() + sets.size();
+    }
+
+    // Randomized round trip of Book and Member through the binary codec and the text form; values mix
+    // the separators, the escape sequences themselves, line breaks and non-Latin text. Exits on the
+    // first record that does not come back unchanged.
+    static void codecRoundTrip(int records) {
+        System.out.println("\n--- Codec round trip, " + records + " records ---");
+        Random rnd = new Random(21);
+        ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        for (int i = 0; i < records; i++) {
+            Book b = new Book(rnd.nextInt(), nasty(rnd), nasty(rnd), nasty(rnd));
+            if (rnd.nextBoolean()) {
+                b.markAsIssued();
+            }
+            Member m = new Member(rnd.nextInt(Integer.MAX_VALUE), nasty(rnd), nasty(rnd));
+            for (int k = rnd.nextInt(5); k > 0; k--) {
+                m.issuedBooks.add(rnd.nextInt(Integer.MAX_VALUE));
+            }
+            buf.clear();
+            RecordCodec.putBook(buf, b);
+            RecordCodec.putMember(buf, m);
+            buf.flip();
+            check(b, RecordCodec.getBook(buf), "binary");
+            check(m, RecordCodec.getMember(buf), "binary");
+            if (buf.hasRemaining()) {
+                fail("binary", b.toCSV());
+            }
+            check(b, Book.fromCSV(b.toCSV()), "text");
+            check(m, Member.fromCSV(m.toCSV()), "text");
+            if (b.toCSV().indexOf('\n') >= 0 || m.toCSV().indexOf('\n') >= 0) {
+                fail("text line break", b.toCSV());
+            }
+        }
+        System.out.println("binary and text codecs: " + records + " books and members round-tripped");
+    }
+
+    private static final String[] NASTY = {"|", "&", "&#124;", "&amp;", "&#10;", "\n", "\r", ",", " ", "é",
+            "\u0416", "\u4e66", "\ud83d\udcd6", "a", "Z", "0"};
+
+    private static String nasty(Random rnd) {
+        StringBuilder sb = new StringBuilder();
+        for (int k = rnd.nextInt(12); k > 0; k--) {
+            sb.append(rnd.nextInt(3) == 0 ? NASTY[rnd.nextInt(NASTY.length)] : word(rnd));
+        }
+        return sb.toString();
+    }
+
+    private static void check(Book want, Book got, String codec) {
+        if (want.bookId != got.bookId || !want.title.equals(got.title) || !want.author.equals(got.author)
+                || !want.category.equals(got.category) || want.isIssued() != got.isIssued()) {
+            fail(codec, want.toCSV() + " -> " + got.toCSV());
+        }
+    }
+
+    private static void check(Member want, Member got, String codec) {
+        if (want.memberId != got.memberId || !want.name.equals(got.name) || !want.email.equals(got.email)
+                || !Arrays.equals(want.issuedBooks.toArray(), got.issuedBooks.toArray())) {
+            fail(codec, want.toCSV() + " -> " + got.toCSV());
+        }
+    }
+
+    private static void fail(String codec, String record) {
+        System.out.println("ROUND TRIP FAILED (" + codec + "): " + record);
+        System.exit(1);
+    }
+
+    // Encode and decode cost per record: the old regex split against the Row-based text parser and
+    // the binary codec used by the snapshot and the log
+    static void codecBenchmarks(int records) {
+        System.out.println("\n--- Record codec, " + records + " books ---");
+        Random rnd = new Random(7);
+        Book[] books = new Book[records];
+        String[] lines = new String[records];
+        for (int i = 0; i < records; i++) {
+            books[i] = new Book(100 + i, word(rnd) + " " + word(rnd) + " | " + word(rnd), word(rnd) + " & " + word(rnd), word(rnd));
+            lines[i] = books[i].toCSV();
+        }
+        ByteBuffer buf = ByteBuffer.allocate(records * 64);
+
+        measure("toCSV", records, () -> {
+            long bytes = 0;
+            for (Book b : books) {
+                bytes += b.toCSV().length();
+            }
+            return bytes;
+        });
+        measure("fromCSV (regex split)", records, () -> {
+            long ids = 0;
+            for (String line : lines) {
+                ids += legacyBook(line).bookId;
+            }
+            return ids;
+        });
+        measure("fromCSV (row cursor)", records, () -> {
+            long ids = 0;
+            for (String line : lines) {
+                ids += Book.fromCSV(line).bookId;
+            }
+            return ids;
+        });
+        measure("binary putBook", records, () -> {
+            buf.clear();
+            for (Book b : books) {
+                RecordCodec.putBook(buf, b);
+            }
+            return buf.position();
+        });
+        measure("binary getBook", records, () -> {
+            buf.rewind();
+            long ids = 0;
+            for (int i = 0; i < records; i++) {
+                ids += RecordCodec.getBook(buf).bookId;
+            }
+            return ids;
+        });
+    }
+
+    // The text parsers as they were before RecordCodec, kept as the baseline
+    private static final Pattern BAR = Pattern.compile("\\|");
+
+    private static Book legacyBook(String line) {
+        String[] p = BAR.split(line);
+        Book b = new Book(Integer.parseInt(p[0]), p[1].replace("&#124;", "|"), p[2].replace("&#124;", "|"), p[3].replace("&#124;", "|"));
+        if (Boolean.parseBoolean(p[4])) {
+            b.markAsIssued();
+        }
+        return b;
+    }
+
+    private static Member legacyMember(String line) {
+        String[] p = line.split("\\|", 4);
+        Member m = new Member(Integer.parseInt(p[0]), p[1].replace("&#124;", "|"), p[2].replace("&#124;", "|"));
+        if (p.length > 3 && p[3].length() > 0) {
+            for (String id : p[3].split(",")) {
+                if (!id.isEmpty()) {
+                    m.issuedBooks.add(Integer.parseInt(id));
+                }
+            }
+        }
+        return m;
+    }
+
+    // Heap in use after a full collection
+    static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static final String[] SYLLABLES = {"ka", "lo", "mi", "te", "su", "ra", "no", "vi", "de", "pa",
+            "ru", "si", "be", "go", "ta", "ne", "fo", "li", "ma", "zu"};
+
+    // Three-syllable pseudo word, 8000 distinct
+    private static String word(Random rnd) {
+        return SYLLABLES[rnd.nextInt(20)] + SYLLABLES[rnd.nextInt(20)] + SYLLABLES[rnd.nextInt(20)];
+    }
+
+    // Every suite that touches disk works in its own directory and removes it with deleteTree from a finally
+    private static Path tempDir() throws IOException {
+        return Files.createTempDirectory("library-bench");
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private static void report(String name, long start, int loaded) {
+        System.out.printf("%-28s %10.2f ms  peak heap %6d MB  (%d books)%n",
+                name, (System.nanoTime() - start) / 1e6, peakHeap() >> 20, loaded);
+    }
+
+    static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    // Sum of the per-pool peaks since the last reset, an upper bound on the heap actually in use
+    static long peakHeap() {
+        long bytes = 0;
+        List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+        for (MemoryPoolMXBean pool : pools) {
+            if (pool.getType() == MemoryType.HEAP) {
+                bytes += pool.getPeakUsage().getUsed();
+            }
+        }
+        return bytes;
+    }
+
+    // Runs the body on the given number of threads at once and prints throughput and time per operation
+    static void measure(String name, int threads, long opsPerRound, LongSupplier body) {
+        if (threads == 1) {
+            measure(name, opsPerRound, body);
+            return;
+        }
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            runOnThreads(threads, body);
+        }
+        long gcCountBefore = gcCount();
+        long gcMillisBefore = gcMillis();
+        long begin = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            runOnThreads(threads, body);
+        }
+        long elapsed = System.nanoTime() - begin;
+        double ops = (double) opsPerRound * MEASURED_ROUNDS * threads;
+        System.out.printf("%-28s %12.2f ns/op  %8.2f Mops/s  gc %d (%d ms)%n",
+                name, elapsed / ops, ops / elapsed * 1e3, gcCount() - gcCountBefore, gcMillis() - gcMillisBefore);
+    }
+
+    private static void runOnThreads(int threads, LongSupplier body) {
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> sink += body.getAsLong(), "desk-" + t);
+            workers[t].start();
+        }
+        try {
+            for (Thread w : workers) {
+                w.join();
+            }
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Runs the body for the warm-up and measured rounds and prints the time per operation and the
+    // GC activity seen during the measured rounds
+    static void measure(String name, long opsPerRound, LongSupplier body) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            sink += body.getAsLong();
+        }
+        long gcCountBefore = gcCount();
+        long gcMillisBefore = gcMillis();
+        long begin = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            sink += body.getAsLong();
+        }
+        long elapsed = System.nanoTime() - begin;
+        double ops = (double) opsPerRound * MEASURED_ROUNDS;
+        System.out.printf("%-28s %12.2f ns/op  gc %d (%d ms)%n",
+                name, elapsed / ops, gcCount() - gcCountBefore, gcMillis() - gcMillisBefore);
+    }
+
+    static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+}
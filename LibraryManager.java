@@ -1,110 +1,2275 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 class Book implements Comparable<Book>, Serializable {
     int bookId;
     String title;
     String author;
     String category;
-    boolean isIssued;
+    // ON_SHELF, the id of the member holding it, or BUSY while a desk is changing it. A copy read from a
+    // PagedCatalog keeps this in the catalog's cell for the book instead, shared by every copy.
+    private volatile int holder;
+    private transient int[] cells;
+    private transient int cell;
+
+    static final int ON_SHELF = 0, BUSY = -1, HOLDER_UNKNOWN = -2;
+    private static final VarHandle HOLDER;
+    private static final VarHandle CELL = MethodHandles.arrayElementVarHandle(int[].class);
+    static {
+        try{ HOLDER = MethodHandles.lookup().findVarHandle(Book.class, "holder", int.class); }
+        catch(ReflectiveOperationException e){ throw new ExceptionInInitializerError(e); }
+    }
 
     Book(int id, String t, String a, String c) {
-        bookId = id; title = t; author = a; category = c; isIssued = false;
+        bookId = id; title = t; author = a; category = c; holder = ON_SHELF;
+    }
+
+    int holder(){ return cells == null ? holder : (int) CELL.getVolatile(cells, cell); }
+    boolean isIssued(){ return holder() != ON_SHELF; }
+    // The holder once no desk is changing the book; a BUSY book is released within one log write
+    int settledHolder(){
+        for(int spins = 0;; spins++){
+            int h = holder();
+            if(h != BUSY) return h;
+            if(spins < 100) Thread.onSpinWait(); else Thread.yield();
+        }
+    }
+    // Issued flag from a file; the holder is filled in once the members are loaded
+    void markAsIssued(){ release(HOLDER_UNKNOWN); }
+    void markAsReturned(){ release(ON_SHELF); }
+
+    // Takes the book for one state change if its holder is still 'expect'; release() publishes the result
+    boolean claim(int expect){
+        if(expect == BUSY) return false;
+        return cells == null ? HOLDER.compareAndSet(this, expect, BUSY) : CELL.compareAndSet(cells, cell, expect, BUSY);
+    }
+    void release(int newHolder){
+        if(cells == null) holder = newHolder;
+        else CELL.setVolatile(cells, cell, newHolder);
+    }
+
+    // From now on the holder lives in page[index]; the caller decides what the cell holds
+    void attach(int[] page, int index){ cells = page; cell = index; }
+
+    public String toCSV(){
+        return bookId + "|" + RecordCodec.escape(title) + "|" + RecordCodec.escape(author) + "|" + RecordCodec.escape(category) + "|" + isIssued();
+    }
+
+    static Book fromCSV(String line){ return fromRow(RecordCodec.row(line)); }
+
+    // Parses the toCSV layout field by field, with no split or intermediate String[]
+    static Book fromRow(CatalogLoader.Row r){
+        Book b = new Book(r.number(), r.text(), r.text(), r.text());
+        if(r.flag()) b.markAsIssued();
+        return b;
+    }
+
+    public String toString(){
+        return "["+bookId+"] "+title+" by "+author+" ("+category+") Issued:"+isIssued();
+    }
+
+    public int compareTo(Book o){
+        return this.title.compareToIgnoreCase(o.title);
+    }
+
+}
+
+// Set of ints without boxing: open addressing with linear probing over a power-of-two int[], created
+// lazily, so a member with no books costs one null field and one with a few books a 4-8 slot array.
+// 0 marks an empty slot and is tracked separately.
+class IntSet implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private int[] slots;
+    private int size;
+    private boolean hasZero;
+
+    int size(){ return size; }
+    boolean isEmpty(){ return size == 0; }
+
+    boolean contains(int v){
+        if(v == 0) return hasZero;
+        if(slots == null) return false;
+        int mask = slots.length - 1;
+        for(int i = mix(v) & mask;; i = (i + 1) & mask){
+            if(slots[i] == v) return true;
+            if(slots[i] == 0) return false;
+        }
+    }
+
+    boolean add(int v){
+        if(v == 0){ if(hasZero) return false; hasZero = true; size++; return true; }
+        if(slots == null) slots = new int[4];
+        else if((size + 1) * 4 > slots.length * 3) grow();
+        int mask = slots.length - 1;
+        int i = mix(v) & mask;
+        for(; slots[i] != 0; i = (i + 1) & mask) if(slots[i] == v) return false;
+        slots[i] = v;
+        size++;
+        return true;
+    }
+
+    boolean remove(int v){
+        if(v == 0){ if(!hasZero) return false; hasZero = false; size--; return true; }
+        if(slots == null) return false;
+        int mask = slots.length - 1;
+        int i = mix(v) & mask;
+        for(; slots[i] != v; i = (i + 1) & mask) if(slots[i] == 0) return false;
+        // backward-shift deletion keeps every probe chain unbroken without tombstones
+        for(int j = (i + 1) & mask; slots[j] != 0; j = (j + 1) & mask){
+            int home = mix(slots[j]) & mask;
+            if(((j - home) & mask) >= ((j - i) & mask)){ slots[i] = slots[j]; i = j; }
+        }
+        slots[i] = 0;
+        if(--size == 0 && !hasZero) slots = null;
+        return true;
+    }
+
+    // Members in ascending order
+    int[] toArray(){
+        int[] out = new int[size];
+        int n = 0;
+        if(hasZero) out[n++] = 0;
+        if(slots != null) for(int v : slots) if(v != 0) out[n++] = v;
+        Arrays.sort(out);
+        return out;
+    }
+
+    public String toString(){ return Arrays.toString(toArray()); }
+
+    private void grow(){
+        int[] old = slots;
+        slots = new int[old.length * 2];
+        int mask = slots.length - 1;
+        for(int v : old){
+            if(v == 0) continue;
+            int i = mix(v) & mask;
+            while(slots[i] != 0) i = (i + 1) & mask;
+            slots[i] = v;
+        }
+    }
+
+    private static int mix(int v){
+        int h = v * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
+
+// int -> int map in the IntSet layout: linear probing over a power-of-two key array with a parallel
+// value array, 0 keys kept aside, backward-shift deletion
+class IntIntMap {
+    private int[] keys, values;
+    private int size;
+    private boolean hasZero;
+    private int zeroValue;
+
+    int size(){ return size; }
+    boolean isEmpty(){ return size == 0; }
+
+    boolean containsKey(int k){ return k == 0 ? hasZero : find(k) >= 0; }
+
+    int get(int k, int missing){
+        if(k == 0) return hasZero ? zeroValue : missing;
+        int i = find(k);
+        return i >= 0 ? values[i] : missing;
+    }
+
+    void put(int k, int v){
+        if(k == 0){ if(!hasZero) size++; hasZero = true; zeroValue = v; return; }
+        if(keys == null){ keys = new int[4]; values = new int[4]; }
+        else if((size + 1) * 4 > keys.length * 3) grow();
+        int mask = keys.length - 1;
+        int i = mix(k) & mask;
+        for(; keys[i] != 0; i = (i + 1) & mask) if(keys[i] == k){ values[i] = v; return; }
+        keys[i] = k; values[i] = v;
+        size++;
+    }
+
+    boolean remove(int k){
+        if(k == 0){ if(!hasZero) return false; hasZero = false; size--; return true; }
+        int i = find(k);
+        if(i < 0) return false;
+        int mask = keys.length - 1;
+        for(int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask){
+            int home = mix(keys[j]) & mask;
+            if(((j - home) & mask) >= ((j - i) & mask)){ keys[i] = keys[j]; values[i] = values[j]; i = j; }
+        }
+        keys[i] = 0;
+        size--;
+        return true;
+    }
+
+    // Entries whose unsigned value is in [from, to), packed as (value << 32 | unsigned key) and sorted,
+    // i.e. ordered by value then key
+    long[] sortedByValue(long from, long to){
+        long[] out = new long[size];
+        int n = 0;
+        if(hasZero && inRange(zeroValue, from, to)) out[n++] = (zeroValue & 0xFFFFFFFFL) << 32;
+        if(keys != null){
+            for(int i = 0; i < keys.length; i++){
+                if(keys[i] != 0 && inRange(values[i], from, to)) out[n++] = (values[i] & 0xFFFFFFFFL) << 32 | (keys[i] & 0xFFFFFFFFL);
+            }
+        }
+        Arrays.sort(out, 0, n);
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    private static boolean inRange(int v, long from, long to){
+        long u = v & 0xFFFFFFFFL;
+        return u >= from && u < to;
+    }
+
+    private int find(int k){
+        if(keys == null) return -1;
+        int mask = keys.length - 1;
+        for(int i = mix(k) & mask;; i = (i + 1) & mask){
+            if(keys[i] == k) return i;
+            if(keys[i] == 0) return -1;
+        }
+    }
+
+    private void grow(){
+        int[] oldKeys = keys, oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for(int j = 0; j < oldKeys.length; j++){
+            if(oldKeys[j] == 0) continue;
+            int i = mix(oldKeys[j]) & mask;
+            while(keys[i] != 0) i = (i + 1) & mask;
+            keys[i] = oldKeys[j]; values[i] = oldValues[j];
+        }
+    }
+
+    private static int mix(int v){
+        int h = v * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
+
+class Member implements Serializable {
+    int memberId;
+    String name;
+    String email;
+    IntSet issuedBooks = new IntSet();
+
+    Member(int id, String n, String e){
+        memberId = id; name = n; email = e;
+    }
+
+    // Desks may lend this member different books at the same time, so the list is guarded by the member
+    synchronized void addIssuedBook(int bookId){ issuedBooks.add(bookId); }
+    synchronized void returnIssuedBook(int bookId){ issuedBooks.remove(bookId); }
+    synchronized boolean hasIssued(int bookId){ return issuedBooks.contains(bookId); }
+    synchronized int[] issuedIds(){ return issuedBooks.toArray(); }
+    public String toCSV(){
+        return memberId + "|" + RecordCodec.escape(name) + "|" + RecordCodec.escape(email) + "|" + issuedBooksToString();
+    }
+    static Member fromCSV(String line){ return fromRow(RecordCodec.row(line)); }
+    static Member fromRow(CatalogLoader.Row r){
+        Member m = new Member(r.number(), r.text(), r.text());
+        while(r.hasMore()) m.issuedBooks.add(r.number());
+        return m;
+    }
+    synchronized String issuedBooksToString(){
+        StringBuilder sb = new StringBuilder();
+        int[] ids = issuedBooks.toArray();
+        for(int i=0;i<ids.length;i++){
+            if(i>0) sb.append(",");
+            sb.append(ids[i]);
+        }
+        return sb.toString();
+    }
+    public synchronized String toString(){
+        return "["+memberId+"] "+name+" <"+email+"> Issued:"+issuedBooks;
+    }
+}
+
+// Inverted index over title, author and category, updated as books are added. Each field maps its
+// lowercase tokens to book ids; substring lookups go through a trigram index over the distinct tokens,
+// so a query touches the dictionary and the matching postings, never the whole catalog.
+class CatalogIndex {
+    static final int TITLE = 1, AUTHOR = 2, CATEGORY = 4, ALL = 7;
+    private static final int EXACT = 3, PREFIX = 2, SUBSTRING = 1;
+    // A word shorter than a trigram gets no substring matches, and its prefix expansion stops after
+    // this many dictionary tokens, so "a" does not walk the whole dictionary
+    private static final int SHORT_PREFIX_TOKENS = 256;
+
+    private final FieldIndex title = new FieldIndex(), author = new FieldIndex(), category = new FieldIndex();
+
+    void add(Book b){
+        title.add(b.bookId, b.title);
+        author.add(b.bookId, b.author);
+        category.add(b.bookId, b.category);
+    }
+
+    // Bulk add of one field (TITLE, AUTHOR or CATEGORY) for books with ascending ids. The fields are
+    // independent, so the three calls for a batch may run at the same time.
+    void addAll(int field, int[] ids, String[] texts){
+        (field == TITLE ? title : field == AUTHOR ? author : category).addAll(ids, texts);
+    }
+
+    // Ids of books matching every word of the query in at least one of the given fields, best first.
+    // A word scores 3 for a whole-token match, 2 for a token prefix and 1 for a substring; scores add up.
+    // Chars other than letters and digits are separators here; see LibraryManager.searchBooks for "c++".
+    List<Integer> search(String query, int fields){
+        List<String> words = tokens(query);
+        if(words.isEmpty()) return new ArrayList<>();
+        List<IntIntMap> perWord = new ArrayList<>();
+        for(String w : new LinkedHashSet<>(words)){
+            IntIntMap scores = new IntIntMap();
+            if((fields & TITLE) != 0) title.match(w, scores);
+            if((fields & AUTHOR) != 0) author.match(w, scores);
+            if((fields & CATEGORY) != 0) category.match(w, scores);
+            if(scores.isEmpty()) return new ArrayList<>();
+            perWord.add(scores);
+        }
+        perWord.sort(Comparator.comparingInt(IntIntMap::size));
+        // (EXACT * words - score) << 32 | id, so an ascending sort is best score first, then by id
+        long[] ranked = perWord.get(0).sortedByValue(0, 1L << 32);
+        long most = (long) EXACT * perWord.size();
+        int n = 0;
+        candidates:
+        for(long e : ranked){
+            int id = (int) e, score = (int) (e >>> 32);
+            for(int i = 1; i < perWord.size(); i++){
+                int s = perWord.get(i).get(id, 0);
+                if(s == 0) continue candidates;
+                score += s;
+            }
+            ranked[n++] = (most - score) << 32 | (id & 0xFFFFFFFFL);
+        }
+        Arrays.sort(ranked, 0, n);
+        List<Integer> ids = new ArrayList<>(n);
+        for(int i = 0; i < n; i++) ids.add((int) ranked[i]);
+        return ids;
+    }
+
+    // Lowercase runs of letters and digits
+    static List<String> tokens(String text){
+        List<String> out = new ArrayList<>();
+        int start = -1;
+        for(int i = 0; i <= text.length(); i++){
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if(word && start < 0) start = i;
+            else if(!word && start >= 0){ out.add(text.substring(start, i).toLowerCase(Locale.ROOT)); start = -1; }
+        }
+        return out;
+    }
+
+    static final class FieldIndex {
+        private final TreeMap<String, IntList> postings = new TreeMap<>();
+        private final Map<String, Set<String>> trigrams = new HashMap<>(); // trigram -> tokens containing it
+
+        void add(int bookId, String text){
+            for(String t : new HashSet<>(tokens(text))){
+                IntList ids = postings.get(t);
+                if(ids == null){
+                    postings.put(t, ids = new IntList());
+                    register(t);
+                }
+                ids.add(bookId);
+            }
+        }
+
+        // Lookups during the batch go through a hash map and new tokens reach the TreeMap once each; a
+        // token repeated within one book is dropped by checking the last id posted, as ids only grow
+        void addAll(int[] ids, String[] texts){
+            Map<String, IntList> staged = new HashMap<>();
+            for(int i = 0; i < ids.length; i++){
+                for(String t : tokens(texts[i])){
+                    IntList list = staged.get(t);
+                    if(list == null){
+                        list = postings.get(t);
+                        staged.put(t, list != null ? list : (list = new IntList()));
+                    }
+                    if(list.size == 0 || list.values[list.size - 1] != ids[i]) list.add(ids[i]);
+                }
+            }
+            for(Map.Entry<String, IntList> e : staged.entrySet()){
+                if(postings.putIfAbsent(e.getKey(), e.getValue()) == null) register(e.getKey());
+            }
+        }
+
+        private void register(String t){
+            for(int i = 0; i + 3 <= t.length(); i++) trigrams.computeIfAbsent(t.substring(i, i + 3), k -> new HashSet<>()).add(t);
+        }
+
+        // Raises each matching book's score for this word to the best kind of match in this field
+        void match(String w, IntIntMap scores){
+            boolean isShort = w.length() < 3;
+            int expanded = 0;
+            for(Map.Entry<String, IntList> e : postings.subMap(w, true, w + Character.MAX_VALUE, false).entrySet()){
+                if(isShort && expanded++ == SHORT_PREFIX_TOKENS) break;
+                credit(e.getValue(), e.getKey().equals(w) ? EXACT : PREFIX, scores);
+            }
+            if(isShort) return;
+            for(String t : containing(w)){
+                if(!t.startsWith(w)) credit(postings.get(t), SUBSTRING, scores);
+            }
+        }
+
+        // Tokens that contain w (at least three chars) somewhere
+        private Collection<String> containing(String w){
+            Set<String> smallest = null;
+            for(int i = 0; i + 3 <= w.length(); i++){
+                Set<String> s = trigrams.get(w.substring(i, i + 3));
+                if(s == null) return Collections.emptyList();
+                if(smallest == null || s.size() < smallest.size()) smallest = s;
+            }
+            List<String> out = new ArrayList<>();
+            for(String t : smallest) if(t.contains(w)) out.add(t);
+            return out;
+        }
+
+        private static void credit(IntList ids, int score, IntIntMap scores){
+            for(int i = 0; i < ids.size; i++){
+                int id = ids.values[i];
+                if(scores.get(id, 0) < score) scores.put(id, score);
+            }
+        }
+    }
+
+    // Growable int array used for postings lists
+    static final class IntList {
+        int[] values = new int[2];
+        int size;
+
+        void add(int v){
+            if(size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = v;
+        }
+    }
+}
+
+// Books kept in order of a precomputed lowercase key (ties broken by id), stored as a list of sorted
+// blocks like the leaves of a B-tree. The first eight chars of each key are also packed into a long so
+// most comparisons never touch the String. A Fenwick tree over the block sizes finds the block holding any
+// position, so inserting is O(log n + BLOCK) and reading k entries from position p is O(log n + k).
+class SortedView {
+    private static final int BLOCK = 512;
+    private static final int FILL = BLOCK * 3 / 4; // blocks written by addAll keep room for later adds
+
+    private static final class Block {
+        long[] prefixes = new long[BLOCK];
+        String[] keys = new String[BLOCK];
+        int[] ids = new int[BLOCK];
+        int size;
+    }
+
+    private final List<Block> blocks = new ArrayList<>();
+    private int[] tree = new int[1]; // Fenwick tree over block sizes, 1-based
+    // per block, kept flat so searches and splits do not chase block pointers
+    private int[] sizes = new int[16];
+    private long[] lasts = new long[16]; // prefix of the block's last key
+    private int size;
+
+    int size(){ return size; }
+
+    void add(String field, int bookId){
+        String key = field.toLowerCase(Locale.ROOT);
+        long prefix = prefix(key);
+        if(blocks.isEmpty()){ blocks.add(new Block()); rebuildTree(); }
+        int bi = findBlock(prefix, key, bookId);
+        Block b = blocks.get(bi);
+        int lo = 0, hi = b.size;
+        while(lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if(compare(b, mid, prefix, key, bookId) < 0) lo = mid + 1; else hi = mid;
+        }
+        // equal keys sort next to each other, so repeated authors and categories share one String
+        if(lo > 0 && b.prefixes[lo - 1] == prefix && b.keys[lo - 1].equals(key)) key = b.keys[lo - 1];
+        else if(lo < b.size && b.prefixes[lo] == prefix && b.keys[lo].equals(key)) key = b.keys[lo];
+        System.arraycopy(b.prefixes, lo, b.prefixes, lo + 1, b.size - lo);
+        System.arraycopy(b.keys, lo, b.keys, lo + 1, b.size - lo);
+        System.arraycopy(b.ids, lo, b.ids, lo + 1, b.size - lo);
+        b.prefixes[lo] = prefix; b.keys[lo] = key; b.ids[lo] = bookId;
+        b.size++; size++;
+        sizes[bi] = b.size;
+        lasts[bi] = b.prefixes[b.size - 1];
+        if(b.size == BLOCK) split(bi);
+        else for(int i = bi + 1; i < tree.length; i += i & -i) tree[i]++;
+    }
+
+    // Sorts the batch and merges it with the current entries into fresh blocks, O(n + m log m) for m
+    // books instead of m single inserts; equal keys share one String as in add()
+    void addAll(String[] fields, int[] ids){
+        int m = ids.length;
+        if(m == 0) return;
+        String[] keys = new String[m];
+        long[] prefixes = new long[m];
+        for(int i = 0; i < m; i++){
+            keys[i] = fields[i].toLowerCase(Locale.ROOT);
+            prefixes[i] = prefix(keys[i]);
+        }
+        int[] order = sortedOrder(keys, prefixes, ids);
+        List<Block> merged = new ArrayList<>();
+        Block out = null;
+        String lastKey = null;
+        long lastPrefix = 0;
+        int bi = 0, i = 0, j = 0;
+        while(j < m || bi < blocks.size()){
+            if(bi < blocks.size() && i == blocks.get(bi).size){ bi++; i = 0; continue; }
+            long p; String k; int id;
+            if(bi < blocks.size() && (j == m || compare(blocks.get(bi), i, prefixes[order[j]], keys[order[j]], ids[order[j]]) < 0)){
+                Block b = blocks.get(bi);
+                p = b.prefixes[i]; k = b.keys[i]; id = b.ids[i];
+                i++;
+            } else {
+                int x = order[j++];
+                p = prefixes[x]; k = keys[x]; id = ids[x];
+            }
+            if(lastKey != null && lastPrefix == p && lastKey.equals(k)) k = lastKey;
+            if(out == null || out.size == FILL){ out = new Block(); merged.add(out); }
+            out.prefixes[out.size] = p; out.keys[out.size] = k; out.ids[out.size] = id;
+            out.size++;
+            lastKey = k; lastPrefix = p;
+        }
+        blocks.clear();
+        blocks.addAll(merged);
+        int n = blocks.size();
+        sizes = new int[Math.max(16, n * 2)];
+        lasts = new long[sizes.length];
+        for(int b = 0; b < n; b++){
+            Block blk = blocks.get(b);
+            sizes[b] = blk.size;
+            lasts[b] = blk.prefixes[blk.size - 1];
+        }
+        size += m;
+        rebuildTree();
+    }
+
+    // Batch positions in view order: an LSD radix sort on the prefixes, 16 bits per pass, with passes
+    // skipped where every entry has the same digit (e.g. the zero padding of short keys). Runs of equal
+    // prefixes then go to sortTies, starting at the first char the prefix does not pin down.
+    private static int[] sortedOrder(String[] keys, long[] prefixes, int[] ids){
+        int m = keys.length;
+        int[] order = new int[m], spare = new int[m], count = new int[(1 << 16) + 1];
+        for(int i = 0; i < m; i++) order[i] = i;
+        for(int shift = 0; shift < 64; shift += 16){
+            Arrays.fill(count, 0);
+            for(int i = 0; i < m; i++) count[(int)(prefixes[i] >>> shift & 0xFFFF) + 1]++;
+            if(count[(int)(prefixes[0] >>> shift & 0xFFFF) + 1] == m) continue;
+            for(int d = 1; d < count.length; d++) count[d] += count[d - 1];
+            for(int i = 0; i < m; i++){
+                int x = order[i];
+                spare[count[(int)(prefixes[x] >>> shift & 0xFFFF)]++] = x;
+            }
+            int[] t = order; order = spare; spare = t;
+        }
+        for(int s = 0, e; s < m; s = e){
+            long p = prefixes[order[s]];
+            for(e = s + 1; e < m && prefixes[order[e]] == p; e++);
+            if(e - s == 1) continue;
+            int known = 0; // leading chars that are exact in the prefix: not padding, not clamped
+            while(known < 8){
+                int c = (int)(p >>> (56 - 8 * known) & 0xFF);
+                if(c == 0 || c == 255) break;
+                known++;
+            }
+            sortTies(order, s, e, known, keys, ids);
+        }
+        return order;
+    }
+
+    // Multikey quicksort of order[lo, hi) whose keys agree before char d: a three-way partition on char
+    // d, recursing on the smaller and larger parts and moving to d + 1 for the equal part. Keys that
+    // are equal to the end are put in id order.
+    private static void sortTies(int[] order, int lo, int hi, int d, String[] keys, int[] ids){
+        while(hi - lo > 1){
+            if(hi - lo < 12){
+                for(int i = lo + 1; i < hi; i++){
+                    int x = order[i], j = i;
+                    for(; j > lo && compareEntries(order[j - 1], x, keys, ids) > 0; j--) order[j] = order[j - 1];
+                    order[j] = x;
+                }
+                return;
+            }
+            int pivot = charAt(keys[order[(lo + hi) >>> 1]], d);
+            int lt = lo, gt = hi - 1, i = lo;
+            while(i <= gt){
+                int c = charAt(keys[order[i]], d);
+                if(c < pivot){ int t = order[lt]; order[lt++] = order[i]; order[i++] = t; }
+                else if(c > pivot){ int t = order[gt]; order[gt--] = order[i]; order[i] = t; }
+                else i++;
+            }
+            sortTies(order, lo, lt, d, keys, ids);
+            sortTies(order, gt + 1, hi, d, keys, ids);
+            if(pivot < 0){ sortIds(order, lt, gt + 1, ids); return; }
+            lo = lt; hi = gt + 1; d++;
+        }
+    }
+
+    private static int charAt(String s, int d){ return d < s.length() ? s.charAt(d) : -1; }
+
+    private static int compareEntries(int x, int y, String[] keys, int[] ids){
+        int c = keys[x].compareTo(keys[y]);
+        return c != 0 ? c : Integer.compare(ids[x], ids[y]);
+    }
+
+    // Equal keys: order by id, packing id and position into longs so the sort stays primitive
+    private static void sortIds(int[] order, int lo, int hi, int[] ids){
+        long[] packed = new long[hi - lo];
+        for(int i = lo; i < hi; i++) packed[i - lo] = (long) ids[order[i]] << 32 | order[i];
+        Arrays.sort(packed);
+        for(int i = lo; i < hi; i++) order[i] = (int) packed[i - lo];
+    }
+
+    // Ids at positions [from, from + count) in sort order
+    List<Integer> page(int from, int count){
+        List<Integer> out = new ArrayList<>(Math.max(0, Math.min(count, size - from)));
+        if(from < 0 || from >= size || count <= 0) return out;
+        // descend the Fenwick tree to the block containing position 'from'
+        int bi = 0, rest = from;
+        for(int step = Integer.highestOneBit(blocks.size()); step > 0; step >>= 1){
+            int next = bi + step;
+            if(next < tree.length && tree[next] <= rest){ bi = next; rest -= tree[next]; }
+        }
+        for(; bi < blocks.size() && out.size() < count; bi++, rest = 0){
+            Block b = blocks.get(bi);
+            for(int i = rest; i < b.size && out.size() < count; i++) out.add(b.ids[i]);
+        }
+        return out;
+    }
+
+    // First block whose last entry is not below the key; the last block when the key sorts after everything
+    private int findBlock(long prefix, String key, int bookId){
+        int lo = 0, hi = blocks.size() - 1;
+        while(lo < hi){
+            int mid = (lo + hi) >>> 1;
+            int c = Long.compareUnsigned(lasts[mid], prefix);
+            if(c == 0){ Block b = blocks.get(mid); c = compare(b, b.size - 1, prefix, key, bookId); }
+            if(c < 0) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    private void split(int bi){
+        Block full = blocks.get(bi), upper = new Block();
+        int half = BLOCK / 2;
+        System.arraycopy(full.prefixes, half, upper.prefixes, 0, BLOCK - half);
+        System.arraycopy(full.keys, half, upper.keys, 0, BLOCK - half);
+        System.arraycopy(full.ids, half, upper.ids, 0, BLOCK - half);
+        Arrays.fill(full.keys, half, BLOCK, null);
+        full.size = half; upper.size = BLOCK - half;
+        blocks.add(bi + 1, upper);
+        int n = blocks.size();
+        if(n > sizes.length){ sizes = Arrays.copyOf(sizes, n * 2); lasts = Arrays.copyOf(lasts, n * 2); }
+        System.arraycopy(sizes, bi + 1, sizes, bi + 2, n - bi - 2);
+        System.arraycopy(lasts, bi + 1, lasts, bi + 2, n - bi - 2);
+        sizes[bi] = full.size; lasts[bi] = full.prefixes[half - 1];
+        sizes[bi + 1] = upper.size; lasts[bi + 1] = upper.prefixes[upper.size - 1];
+        rebuildTree();
+    }
+
+    // O(blocks) over flat arrays and only needed on a split, i.e. once per BLOCK/2 inserts
+    private void rebuildTree(){
+        tree = new int[blocks.size() + 1];
+        for(int i = 1; i < tree.length; i++){
+            tree[i] += sizes[i - 1];
+            int parent = i + (i & -i);
+            if(parent < tree.length) tree[parent] += tree[i];
+        }
+    }
+
+    // Entry i of block b against (prefix, key, id), in String.compareTo order then id order
+    private static int compare(Block b, int i, long prefix, String key, int bookId){
+        int c = Long.compareUnsigned(b.prefixes[i], prefix);
+        if(c == 0) c = b.keys[i].compareTo(key);
+        return c != 0 ? c : Integer.compare(b.ids[i], bookId);
+    }
+
+    // First eight chars as bytes, zero padded. A char >= 255 is stored as 255 and ends the prefix, so
+    // keys that differ only after it get equal prefixes and fall back to compareTo; order is preserved.
+    private static long prefix(String key){
+        long p = 0;
+        boolean clamped = false;
+        for(int i = 0; i < 8; i++){
+            int c = clamped || i >= key.length() ? 0 : Math.min(key.charAt(i), 255);
+            if(c == 255) clamped = true;
+            p = p << 8 | c;
+        }
+        return p;
+    }
+}
+
+// Streaming loader for books.txt / members.txt. The file is mapped, cut into line-aligned byte ranges
+// and the ranges are parsed in parallel with a hand-written '|' tokenizer, so no line strings or
+// regex splits are created and the file contents never sit on the heap.
+class CatalogLoader {
+    interface RowParser<T> { T parse(Row r); }
+
+    private static final int MIN_RANGE = 1 << 20;
+    private static final long MAX_RANGE = 1L << 30;
+
+    private final Path file;
+    private final LongAdder malformed = new LongAdder();
+
+    CatalogLoader(Path file){ this.file = file; }
+
+    long malformed(){ return malformed.sum(); }
+
+    // Parsed rows in file order; blank lines are skipped and malformed ones counted
+    <T> List<T> rows(RowParser<T> parser) throws IOException {
+        try(FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)){
+            long size = ch.size();
+            long[] cuts = cuts(ch, size);
+            List<List<T>> parts;
+            try{
+                parts = IntStream.range(0, cuts.length - 1).parallel()
+                        .mapToObj(i -> parseRange(ch, cuts[i], cuts[i+1], parser))
+                        .collect(Collectors.toList());
+            } catch(UncheckedIOException e){ throw e.getCause(); }
+            int total = 0;
+            for(List<T> part : parts) total += part.size();
+            List<T> out = new ArrayList<>(total);
+            for(List<T> part : parts) out.addAll(part);
+            return out;
+        }
+    }
+
+    // Range boundaries, each moved forward to just after a newline
+    private static long[] cuts(FileChannel ch, long size) throws IOException {
+        int n = (int) Math.max(1, Math.min(size / MIN_RANGE, Runtime.getRuntime().availableProcessors() * 4L));
+        n = (int) Math.max(n, size / MAX_RANGE + 1);
+        long[] cuts = new long[n + 1];
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        for(int i = 1; i < n; i++){
+            long pos = Math.max(cuts[i-1], size / n * i);
+            search:
+            while(pos < size){
+                probe.clear();
+                int read = ch.read(probe, pos);
+                if(read <= 0) { pos = size; break; }
+                for(int j = 0; j < read; j++) if(probe.get(j) == '\n'){ pos += j + 1; break search; }
+                pos += read;
+            }
+            cuts[i] = Math.min(pos, size);
+        }
+        cuts[n] = size;
+        return cuts;
+    }
+
+    private <T> List<T> parseRange(FileChannel ch, long start, long end, RowParser<T> parser){
+        List<T> out = new ArrayList<>();
+        if(start >= end) return out;
+        MappedByteBuffer buf;
+        try{ buf = ch.map(FileChannel.MapMode.READ_ONLY, start, end - start); }
+        catch(IOException e){ throw new UncheckedIOException(e); }
+        Row row = new Row(buf);
+        int limit = buf.limit(), lineStart = 0;
+        while(lineStart < limit){
+            int lineEnd = lineStart;
+            while(lineEnd < limit && buf.get(lineEnd) != '\n') lineEnd++;
+            int next = lineEnd + 1;
+            if(lineEnd > lineStart && buf.get(lineEnd - 1) == '\r') lineEnd--;
+            if(!blank(buf, lineStart, lineEnd)){
+                try{ out.add(parser.parse(row.reset(lineStart, lineEnd))); }
+                catch(RuntimeException e){ malformed.increment(); }
+            }
+            lineStart = next;
+        }
+        return out;
+    }
+
+    private static boolean blank(ByteBuffer buf, int from, int to){
+        for(int i = from; i < to; i++) if(buf.get(i) > ' ') return false;
+        return true;
+    }
+
+    // Cursor over one line; each call consumes a field and the separator after it
+    static final class Row {
+        private final ByteBuffer buf;
+        private int pos, end;
+        private byte[] scratch; // mapped buffers only; heap ones are decoded in place
+
+        Row(ByteBuffer buf){ this.buf = buf; }
+
+        Row reset(int from, int to){ pos = from; end = to; return this; }
+
+        boolean hasMore(){ return pos < end; }
+
+        // Text up to the next '|', with RecordCodec's escapes undone
+        String text(){
+            int from = pos;
+            while(pos < end && buf.get(pos) != '|') pos++;
+            int len = pos - from;
+            if(pos < end) pos++;
+            String s;
+            if(buf.hasArray()) s = new String(buf.array(), buf.arrayOffset() + from, len, StandardCharsets.UTF_8);
+            else {
+                if(scratch == null || scratch.length < len) scratch = new byte[Math.max(len, scratch == null ? 256 : scratch.length * 2)];
+                buf.get(from, scratch, 0, len);
+                s = new String(scratch, 0, len, StandardCharsets.UTF_8);
+            }
+            return s.indexOf('&') >= 0 ? RecordCodec.unescape(s) : s;
+        }
+
+        // Decimal int ending at '|', ',' or the end of the line
+        int number(){ return (int) parse(Integer.MAX_VALUE); }
+
+        // Same for a long, such as a timestamp
+        long longNumber(){ return parse(Long.MAX_VALUE); }
+
+        // Accumulates negatively, like Long.parseLong, so -max - 1 is accepted without overflowing
+        private long parse(long max){
+            int from = pos;
+            boolean negative = pos < end && buf.get(pos) == '-';
+            if(negative) pos++;
+            long limit = negative ? -max - 1 : -max, v = 0;
+            while(pos < end){
+                byte c = buf.get(pos);
+                if(c < '0' || c > '9') break;
+                if(v < limit / 10 || v * 10 < limit + (c - '0')) throw new NumberFormatException("Number too large");
+                v = v * 10 - (c - '0');
+                pos++;
+            }
+            if(pos == from + (negative ? 1 : 0)) throw new NumberFormatException("Expected a number at byte " + from);
+            if(pos < end){
+                byte sep = buf.get(pos);
+                if(sep != '|' && sep != ',') throw new NumberFormatException("Unexpected '" + (char) sep + "'");
+                pos++;
+            }
+            return negative ? v : -v;
+        }
+
+        boolean flag(){ return Boolean.parseBoolean(text()); }
+    }
+}
+
+// Holds on issued books. Each book has a FIFO queue guarded by its own monitor; members get increasing
+// tickets and the queue only shrinks from the head, so membership and queue position are O(1) lookups
+// at any queue length. A reverse index lists the books each member is waiting for. A hold is logged
+// while its queue is locked, so the record always precedes the ISSUE that later serves it.
+class Reservations {
+    private static final class HoldQueue {
+        int[] order = new int[4]; // ring of waiting members, first in line at head
+        int head, size;
+        final IntIntMap tickets = new IntIntMap(); // member -> ticket
+        int served, issued; // tickets taken off the head / handed out; positions are differences, so wrapping is fine
+
+        void push(int memberId){
+            if(size == order.length){
+                int[] grown = new int[size * 2];
+                for(int i = 0; i < size; i++) grown[i] = order[(head + i) & (size - 1)];
+                order = grown;
+                head = 0;
+            }
+            order[(head + size++) & (order.length - 1)] = memberId;
+        }
+
+        int pop(){
+            int m = order[head];
+            head = (head + 1) & (order.length - 1);
+            size--;
+            return m;
+        }
+
+        List<Integer> toList(){
+            List<Integer> out = new ArrayList<>(size);
+            for(int i = 0; i < size; i++) out.add(order[(head + i) & (order.length - 1)]);
+            return out;
+        }
+    }
+
+    // A queue or member set is removed from its map when it empties, under its own lock; anyone who locked
+    // it just before that sees it is no longer mapped and starts over with a fresh one
+    private final Map<Integer, HoldQueue> byBook = new ConcurrentHashMap<>();
+    private final Map<Integer, IntSet> byMember = new ConcurrentHashMap<>();
+    private final LibraryStore store; // null when nothing is persisted
+
+    Reservations(LibraryStore store){ this.store = store; }
+
+    // Queues the member and returns their 1-based position, or 0 if they were already waiting
+    int add(int bookId, int memberId){
+        while(true){
+            HoldQueue q = byBook.computeIfAbsent(bookId, k -> new HoldQueue());
+            synchronized(q){
+                if(byBook.get(bookId) != q) continue;
+                if(q.tickets.containsKey(memberId)) return 0;
+                int ticket = q.issued++;
+                q.tickets.put(memberId, ticket);
+                q.push(memberId);
+                reserve(memberId, bookId);
+                if(store != null) store.hold(bookId, memberId);
+                return ticket - q.served + 1;
+            }
+        }
+    }
+
+    // Takes the first waiter off the queue, or returns null
+    Integer poll(int bookId){
+        HoldQueue q = byBook.get(bookId);
+        if(q == null) return null;
+        synchronized(q){
+            if(q.size == 0) return null;
+            int m = q.pop();
+            q.tickets.remove(m);
+            q.served++;
+            if(q.size == 0) byBook.remove(bookId, q);
+            release(m, bookId);
+            return m;
+        }
+    }
+
+    boolean hasWaiters(int bookId){
+        HoldQueue q = byBook.get(bookId);
+        if(q == null) return false;
+        synchronized(q){ return q.size > 0; }
+    }
+
+    // 1-based place in the book's queue, or 0 if the member is not waiting for it
+    int position(int bookId, int memberId){
+        HoldQueue q = byBook.get(bookId);
+        if(q == null) return 0;
+        synchronized(q){
+            return q.tickets.containsKey(memberId) ? q.tickets.get(memberId, 0) - q.served + 1 : 0;
+        }
+    }
+
+    // Members waiting for a book, first in line first
+    List<Integer> waiters(int bookId){
+        HoldQueue q = byBook.get(bookId);
+        if(q == null) return new ArrayList<>();
+        synchronized(q){ return q.toList(); }
+    }
+
+    // Books the member is waiting for, in id order
+    List<Integer> reservedBy(int memberId){
+        IntSet reserved = byMember.get(memberId);
+        List<Integer> out = new ArrayList<>();
+        if(reserved == null) return out;
+        int[] ids;
+        synchronized(reserved){ ids = reserved.toArray(); }
+        for(int id : ids) out.add(id);
+        return out;
+    }
+
+    // Every non-empty queue, for snapshots and holds.txt
+    Map<Integer, List<Integer>> all(){
+        Map<Integer, List<Integer>> out = new TreeMap<>();
+        for(Map.Entry<Integer, HoldQueue> e : byBook.entrySet()){
+            List<Integer> w = waiters(e.getKey());
+            if(!w.isEmpty()) out.put(e.getKey(), w);
+        }
+        return out;
+    }
+
+    // Loading: queues the member at the back without logging
+    void restore(int bookId, int memberId){
+        while(true){
+            HoldQueue q = byBook.computeIfAbsent(bookId, k -> new HoldQueue());
+            synchronized(q){
+                if(byBook.get(bookId) != q) continue;
+                if(q.tickets.containsKey(memberId)) return;
+                q.tickets.put(memberId, q.issued++);
+                q.push(memberId);
+                reserve(memberId, bookId);
+                return;
+            }
+        }
+    }
+
+    // An ISSUE, live or replayed: the member's hold is served if they were first in line
+    void served(int bookId, int memberId){
+        HoldQueue q = byBook.get(bookId);
+        if(q == null) return;
+        synchronized(q){
+            if(q.size == 0 || q.order[q.head] != memberId) return;
+        }
+        poll(bookId);
+    }
+
+    // Called with the book's queue locked, so a member set is always locked after a queue
+    private void reserve(int memberId, int bookId){
+        while(true){
+            IntSet reserved = byMember.computeIfAbsent(memberId, k -> new IntSet());
+            synchronized(reserved){
+                if(byMember.get(memberId) != reserved) continue;
+                reserved.add(bookId);
+                return;
+            }
+        }
+    }
+
+    private void release(int memberId, int bookId){
+        IntSet reserved = byMember.get(memberId);
+        if(reserved == null) return;
+        synchronized(reserved){
+            if(reserved.remove(bookId) && reserved.isEmpty()) byMember.remove(memberId, reserved);
+        }
+    }
+}
+
+// Live totals per category and per author. Books are only ever added and every issue or return moves
+// one book between available and issued, so two LongAdders per value keep the counts current without
+// scanning the catalog, and desks updating the same category do not contend on one counter.
+class FacetCounts {
+    static final class Facet {
+        final LongAdder total = new LongAdder(), issued = new LongAdder();
+        long total(){ return total.sum(); }
+        long issued(){ return issued.sum(); }
+        // read while desks are working, so clamp the momentary skew between the two sums
+        long available(){ return Math.max(0, total() - issued()); }
+    }
+
+    private final Map<String, Facet> byCategory = new ConcurrentHashMap<>();
+    private final Map<String, Facet> byAuthor = new ConcurrentHashMap<>();
+
+    void added(Book b){
+        facet(byCategory, b.category).total.increment();
+        facet(byAuthor, b.author).total.increment();
+        if(b.isIssued()) issued(b, 1);
+    }
+
+    // +1 when the book goes out, -1 when it comes back
+    void issued(Book b, int delta){
+        facet(byCategory, b.category).issued.add(delta);
+        facet(byAuthor, b.author).issued.add(delta);
+    }
+
+    // Recounts from scratch; only for load, before any desk is serving
+    void rebuild(Collection<Book> books){
+        byCategory.clear();
+        byAuthor.clear();
+        for(Book b : books) added(b);
+    }
+
+    Facet category(String c){ return byCategory.get(c); }
+    Facet author(String a){ return byAuthor.get(a); }
+    SortedMap<String, Facet> categories(){ return new TreeMap<>(byCategory); }
+    SortedMap<String, Facet> authors(){ return new TreeMap<>(byAuthor); }
+
+    private static Facet facet(Map<String, Facet> map, String key){
+        Facet f = map.get(key);
+        return f != null ? f : map.computeIfAbsent(key, k -> new Facet());
+    }
+}
+
+// Due date of every book that is out, as a calendar queue: loans sit in one-hour buckets kept in a
+// TreeMap, each bucket an IntIntMap of book -> due second. "Overdue now" and "due in the next 24 hours"
+// walk only the buckets in range and sort what they find, O(k log k) for k loans, never a scan of the
+// catalog; the per-menu reminder check reads the buckets of the last few minutes. The loans themselves
+// are primitive (book -> second in byBook and in each bucket); only the bucket index boxes, one Long key
+// and TreeMap entry per hour that has loans, about 340 for the two-week loan period. Rebuilding from the
+// snapshot costs one TreeMap lookup and two primitive hash inserts per loan. Due seconds are stored
+// unsigned, which lasts until 2106. Desks update it under its monitor for one hash update, next to the
+// log append they already serialize on.
+class DueDates {
+    static final long LOAN_MILLIS = 14L * 24 * 60 * 60 * 1000;
+    private static final int BUCKET_SECONDS = 3600;
+
+    private final IntIntMap byBook = new IntIntMap();
+    private final TreeMap<Long, IntIntMap> buckets = new TreeMap<>();
+    private long reminded; // due second up to which overdue loans have been reported
+
+    synchronized void put(int bookId, long dueMillis){
+        remove(bookId);
+        long second = dueMillis / 1000;
+        byBook.put(bookId, (int) second);
+        buckets.computeIfAbsent(second / BUCKET_SECONDS, h -> new IntIntMap()).put(bookId, (int) second);
+    }
+
+    synchronized void remove(int bookId){
+        if(!byBook.containsKey(bookId)) return;
+        long hour = unsigned(byBook.get(bookId, 0)) / BUCKET_SECONDS;
+        byBook.remove(bookId);
+        IntIntMap bucket = buckets.get(hour);
+        bucket.remove(bookId);
+        if(bucket.isEmpty()) buckets.remove(hour);
+    }
+
+    synchronized int size(){ return byBook.size(); }
+    synchronized boolean has(int bookId){ return byBook.containsKey(bookId); }
+
+    // Due time in millis, or 0 if the book is not out
+    synchronized long dueOf(int bookId){
+        return byBook.containsKey(bookId) ? unsigned(byBook.get(bookId, 0)) * 1000 : 0;
+    }
+
+    // Books due before 'now', earliest first
+    synchronized List<Integer> overdue(long now){ return range(0, now / 1000); }
+
+    // Books due in [from, to), earliest first
+    synchronized List<Integer> dueBetween(long from, long to){ return range(from / 1000, to / 1000); }
+
+    // Loans that became overdue since the last call; the first call reports everything overdue
+    synchronized List<Integer> newlyOverdue(long now){
+        long until = now / 1000;
+        if(until <= reminded) return new ArrayList<>();
+        List<Integer> out = range(reminded, until);
+        reminded = until;
+        return out;
+    }
+
+    // Book id -> due millis, in due order
+    synchronized Map<Integer, Long> all(){
+        Map<Integer, Long> out = new LinkedHashMap<>();
+        for(IntIntMap bucket : buckets.values()){
+            for(long e : bucket.sortedByValue(0, Long.MAX_VALUE)) out.put((int) e, (e >>> 32) * 1000);
+        }
+        return out;
+    }
+
+    // Books due in seconds [from, to)
+    private List<Integer> range(long from, long to){
+        List<Integer> out = new ArrayList<>();
+        if(from >= to) return out;
+        for(IntIntMap bucket : buckets.subMap(from / BUCKET_SECONDS, true, (to - 1) / BUCKET_SECONDS, true).values()){
+            for(long e : bucket.sortedByValue(from, to)) out.add((int) e);
+        }
+        return out;
+    }
+
+    private static long unsigned(int second){ return second & 0xFFFFFFFFL; }
+}
+
+enum CirculationResult { ISSUED, WAITLISTED, ALREADY_WAITING, ALREADY_HOLDS, RETURNED, NOT_HELD, BOOK_NOT_FOUND, MEMBER_NOT_FOUND }
+
+// Issue and return for many desks at once, with no lock shared between books. A desk changes a book by
+// swinging Book.holder to BUSY with a CAS, updating the member, wait queue and log, then publishing the
+// new holder, so the changes to one book are applied and logged in order. Waiters are only polled while
+// the book is BUSY, which makes every hand-off from the wait queue happen exactly once.
+class Circulation {
+    // Outcome of one call: the waiter a returned book went to, or the queue position of a new waiter
+    static final class Outcome {
+        final CirculationResult result;
+        final int member, position;
+        Outcome(CirculationResult r, int member, int position){ result = r; this.member = member; this.position = position; }
+    }
+
+    private final Map<Integer, Book> books;
+    private final Map<Integer, Member> members;
+    private final Reservations holds;
+    private final FacetCounts facets;
+    private final DueDates due;
+    private final LibraryStore store; // null when nothing is persisted
+
+    Circulation(Map<Integer, Book> books, Map<Integer, Member> members, Reservations holds, FacetCounts facets, DueDates due, LibraryStore store){
+        this.books = books; this.members = members; this.holds = holds; this.facets = facets; this.due = due; this.store = store;
+    }
+
+    Outcome issue(int bookId, int memberId){
+        Book b = books.get(bookId);
+        Member m = members.get(memberId);
+        if(b == null) return new Outcome(CirculationResult.BOOK_NOT_FOUND, 0, 0);
+        if(m == null) return new Outcome(CirculationResult.MEMBER_NOT_FOUND, 0, 0);
+        for(int spins = 0;; ){
+            int h = b.holder();
+            if(h == Book.BUSY){ backOff(++spins); continue; }
+            if(h == memberId) return new Outcome(CirculationResult.ALREADY_HOLDS, memberId, 0);
+            if(h != Book.ON_SHELF) break;
+            if(b.claim(h)){ lend(b, m); return new Outcome(CirculationResult.ISSUED, memberId, 0); }
+        }
+        int position = holds.add(bookId, memberId);
+        if(position == 0) return new Outcome(CirculationResult.ALREADY_WAITING, memberId, holds.position(bookId, memberId));
+        // the book may have come back before we queued, after its returner found the queue empty
+        if(drain(b) == memberId) return new Outcome(CirculationResult.ISSUED, memberId, 0);
+        return new Outcome(CirculationResult.WAITLISTED, memberId, position);
+    }
+
+    Outcome returnBook(int bookId, int memberId){
+        Book b = books.get(bookId);
+        Member m = members.get(memberId);
+        if(b == null) return new Outcome(CirculationResult.BOOK_NOT_FOUND, 0, 0);
+        if(m == null) return new Outcome(CirculationResult.MEMBER_NOT_FOUND, 0, 0);
+        for(int spins = 0;; ){
+            int h = b.holder();
+            if(h == Book.BUSY){ backOff(++spins); continue; }
+            if(h != memberId) return new Outcome(CirculationResult.NOT_HELD, 0, 0);
+            if(b.claim(h)) break;
+        }
+        int next = Book.ON_SHELF;
+        try{
+            facets.issued(b, -1);
+            due.remove(bookId);
+            m.returnIssuedBook(bookId);
+            if(store != null) store.returned(bookId, memberId);
+        } finally {
+            next = handOff(b);
+        }
+        return new Outcome(CirculationResult.RETURNED, next, 0);
+    }
+
+    // Gives a book that is on the shelf to its first waiter; returns who got it or ON_SHELF
+    private int drain(Book b){
+        for(int spins = 0;; ){
+            int h = b.holder();
+            if(h == Book.BUSY){ backOff(++spins); continue; }
+            if(h != Book.ON_SHELF || !holds.hasWaiters(b.bookId)) return Book.ON_SHELF;
+            if(b.claim(h)) return handOff(b);
+        }
+    }
+
+    // Called with the book BUSY: lends it to the first waiter that is still a member, or shelves it
+    private int handOff(Book b){
+        Integer next;
+        while((next = holds.poll(b.bookId)) != null){
+            Member nm = members.get(next);
+            if(nm != null){ lend(b, nm); return next; }
+        }
+        b.release(Book.ON_SHELF);
+        return Book.ON_SHELF;
+    }
+
+    // A BUSY book is released within one log write; yield if the desk holding it is not running
+    private static void backOff(int spins){
+        if(spins < 100) Thread.onSpinWait(); else Thread.yield();
+    }
+
+    // Called with the book BUSY; always publishes the new holder
+    private void lend(Book b, Member m){
+        try{
+            long dueAt = System.currentTimeMillis() + DueDates.LOAN_MILLIS;
+            m.addIssuedBook(b.bookId);
+            facets.issued(b, 1);
+            due.put(b.bookId, dueAt);
+            holds.served(b.bookId, m.memberId); // a walk-in who was first in line, as replay does
+            if(store != null) store.issue(b.bookId, m.memberId, dueAt);
+        } finally {
+            b.release(m.memberId);
+        }
+    }
+}
+
+// Field codec for Book and Member, shared by the snapshot, the change log and the text files.
+// Binary: a string is its UTF-8 byte count followed by the bytes, encoded straight into the buffer and
+// decoded straight out of it. Text: '&', '|' and line breaks are written as character references, so
+// any value, including one that already contains "&#124;", survives books.txt and members.txt.
+final class RecordCodec {
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[256]);
+
+    private RecordCodec(){}
+
+    // Upper bound on the bytes putString writes
+    static int maxSize(String s){ return 4 + s.length() * 3; }
+    static int maxSize(Book b){ return 13 + maxSize(b.title) + maxSize(b.author) + maxSize(b.category); }
+    static int maxSize(Member m){ return maxSize(m, m.issuedBooks.size()); }
+    static int maxSize(Member m, int loans){ return 12 + maxSize(m.name) + maxSize(m.email) + 4 * loans; }
+
+    static void putString(ByteBuffer out, String s){
+        int at = out.position(), n = s.length();
+        out.position(at + 4);
+        for(int i = 0; i < n; i++){
+            char c = s.charAt(i);
+            if(c < 0x80) out.put((byte) c);
+            else if(c < 0x800) out.put((byte)(0xC0 | c >> 6)).put((byte)(0x80 | c & 0x3F));
+            else if(Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))){
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out.put((byte)(0xF0 | cp >> 18)).put((byte)(0x80 | cp >> 12 & 0x3F))
+                   .put((byte)(0x80 | cp >> 6 & 0x3F)).put((byte)(0x80 | cp & 0x3F));
+            }
+            else if(Character.isSurrogate(c)) out.put((byte) '?'); // unpaired, as String.getBytes does
+            else out.put((byte)(0xE0 | c >> 12)).put((byte)(0x80 | c >> 6 & 0x3F)).put((byte)(0x80 | c & 0x3F));
+        }
+        out.putInt(at, out.position() - at - 4);
+    }
+
+    // Heap buffers are decoded in place; mapped ones through a per-thread scratch array
+    static String getString(ByteBuffer in){
+        int n = in.getInt();
+        if(n < 0 || n > in.remaining()) throw new BufferUnderflowException();
+        int at = in.position();
+        in.position(at + n);
+        if(in.hasArray()) return new String(in.array(), in.arrayOffset() + at, n, StandardCharsets.UTF_8);
+        byte[] b = SCRATCH.get();
+        if(b.length < n){ b = new byte[Math.max(n, b.length * 2)]; SCRATCH.set(b); }
+        in.get(at, b, 0, n);
+        return new String(b, 0, n, StandardCharsets.UTF_8);
+    }
+
+    static void putBook(ByteBuffer out, Book b){
+        out.putInt(b.bookId);
+        putString(out, b.title); putString(out, b.author); putString(out, b.category);
+        out.put((byte)(b.settledHolder() != Book.ON_SHELF ? 1 : 0));
+    }
+
+    static Book getBook(ByteBuffer in){
+        Book b = new Book(in.getInt(), getString(in), getString(in), getString(in));
+        if(in.get() == 1) b.markAsIssued();
+        return b;
+    }
+
+    static void putMember(ByteBuffer out, Member m){ putMember(out, m, m.issuedIds()); }
+
+    static void putMember(ByteBuffer out, Member m, int[] ids){
+        out.putInt(m.memberId);
+        putString(out, m.name); putString(out, m.email);
+        out.putInt(ids.length);
+        for(int id : ids) out.putInt(id);
+    }
+
+    static Member getMember(ByteBuffer in){
+        Member m = new Member(in.getInt(), getString(in), getString(in));
+        for(int j = 0, k = in.getInt(); j < k; j++) m.issuedBooks.add(in.getInt());
+        return m;
+    }
+
+    static String escape(String s){
+        int i = 0, n = s.length();
+        while(i < n && !special(s.charAt(i))) i++;
+        if(i == n) return s;
+        StringBuilder sb = new StringBuilder(n + 16).append(s, 0, i);
+        for(; i < n; i++){
+            char c = s.charAt(i);
+            switch(c){
+                case '&': sb.append("&amp;"); break;
+                case '|': sb.append("&#124;"); break;
+                case '\n': sb.append("&#10;"); break;
+                case '\r': sb.append("&#13;"); break;
+                default: sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    // Single pass over the escapes above; any other '&' is kept as written, as older files have them
+    static String unescape(String s){
+        int i = s.indexOf('&');
+        if(i < 0) return s;
+        StringBuilder sb = new StringBuilder(s.length()).append(s, 0, i);
+        while(i < s.length()){
+            char c = s.charAt(i);
+            if(c == '&'){
+                if(s.startsWith("&amp;", i)){ sb.append('&'); i += 5; continue; }
+                if(s.startsWith("&#124;", i)){ sb.append('|'); i += 6; continue; }
+                if(s.startsWith("&#10;", i)){ sb.append('\n'); i += 5; continue; }
+                if(s.startsWith("&#13;", i)){ sb.append('\r'); i += 5; continue; }
+            }
+            sb.append(c);
+            i++;
+        }
+        return sb.toString();
+    }
+
+    private static boolean special(char c){ return c == '&' || c == '|' || c == '\n' || c == '\r'; }
+
+    // Cursor over a single text line, for the fromCSV entry points
+    static CatalogLoader.Row row(String line){
+        ByteBuffer b = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+        int end = b.limit();
+        if(end > 0 && b.get(end - 1) == '\r') end--;
+        return new CatalogLoader.Row(b).reset(0, end);
+    }
+}
+
+// Paged catalog mode, for catalogs too large to keep every Book on the heap. Titles, authors and
+// categories are appended to a catalog*.pages file through memory-mapped 64 MB chunks; per book the heap keeps
+// only its id -> slot entry, file offset and holder cell. Books are decoded on demand and the most
+// recently used stay in a bounded LRU cache, split into segments so desks do not queue on one lock.
+// Holder cells never move and every copy of a book is attached to the same one, so claim() and
+// release() stay exact even when a desk is still working on a copy that has been evicted.
+// The file is scratch space, private to this instance and rebuilt from the snapshot and log on every start.
+class PagedCatalog extends AbstractMap<Integer, Book> implements Closeable {
+    private static final int CHUNK = 1 << 26;
+    private static final int CELL_PAGE = 1 << 12;
+    private static final int MAX_SEGMENTS = 16;
+
+    private final class Segment extends LinkedHashMap<Integer, Book> {
+        private static final long serialVersionUID = 1L; // never serialized; LinkedHashMap just is Serializable
+
+        private final int max;
+        Segment(int max){ super(16, 0.75f, true); this.max = max; }
+        @Override protected boolean removeEldestEntry(Map.Entry<Integer, Book> eldest){
+            if(size() <= max) return false;
+            evictions.increment();
+            return true;
+        }
+    }
+
+    private final Path path;
+    private final FileChannel ch;
+    private final List<MappedByteBuffer> chunks = new ArrayList<>();
+    private long end; // next free byte in the file
+    // id -> slot + 1 by open addressing (0 is empty); per slot the id, record offset and holder cell
+    private int[] keys = new int[1024], slotOf = new int[1024];
+    private int[] ids = new int[1024];
+    private long[] offsets = new long[1024];
+    private int[][] cells = new int[0][];
+    private volatile int size;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final int capacity;
+    private final Segment[] segments;
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder();
+
+    PagedCatalog(Path dir, int capacity) throws IOException {
+        this.capacity = capacity;
+        segments = new Segment[Math.min(MAX_SEGMENTS, Integer.highestOneBit(Math.max(1, capacity)))];
+        for(int i = 0; i < segments.length; i++) segments[i] = new Segment(capacity / segments.length);
+        path = Files.createTempFile(dir, "catalog", ".pages");
+        path.toFile().deleteOnExit();
+        ch = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    @Override public int size(){ return size; }
+
+    @Override public boolean containsKey(Object key){
+        if(!(key instanceof Integer)) return false;
+        lock.readLock().lock();
+        try{ return find((Integer) key) >= 0; }
+        finally { lock.readLock().unlock(); }
+    }
+
+    @Override public Book get(Object key){
+        if(!(key instanceof Integer)) return null;
+        int id = (Integer) key;
+        Segment seg = segments[segment(id)];
+        Book b;
+        synchronized(seg){ b = seg.get(id); }
+        if(b != null){ hits.increment(); return b; }
+        lock.readLock().lock();
+        try{
+            int slot = find(id);
+            if(slot < 0) return null;
+            b = decode(slot);
+        } finally { lock.readLock().unlock(); }
+        misses.increment();
+        synchronized(seg){
+            Book raced = seg.putIfAbsent(id, b);
+            return raced != null ? raced : b;
+        }
+    }
+
+    // Writes the record and takes over the book's holder state; the given instance becomes the cached copy
+    @Override public Book put(Integer key, Book b){
+        int id = key;
+        Book old = null;
+        lock.writeLock().lock();
+        try{
+            int slot = find(id);
+            if(slot >= 0) old = decode(slot);
+            else slot = insert(id);
+            offsets[slot] = append(b);
+            int state = b.holder();
+            b.attach(cells[slot / CELL_PAGE], slot % CELL_PAGE);
+            b.release(state);
+        } finally { lock.writeLock().unlock(); }
+        Segment seg = segments[segment(id)];
+        synchronized(seg){ seg.put(id, b); }
+        return old;
+    }
+
+    // Every book in slot order, decoded without going through the cache
+    @Override public Set<Map.Entry<Integer, Book>> entrySet(){
+        return new AbstractSet<Map.Entry<Integer, Book>>(){
+            @Override public int size(){ return size; }
+            @Override public Iterator<Map.Entry<Integer, Book>> iterator(){
+                int n = size;
+                return new Iterator<Map.Entry<Integer, Book>>(){
+                    private int next;
+                    @Override public boolean hasNext(){ return next < n; }
+                    @Override public Map.Entry<Integer, Book> next(){
+                        if(next >= n) throw new NoSuchElementException();
+                        Book b;
+                        lock.readLock().lock();
+                        try{ b = decode(next++); }
+                        finally { lock.readLock().unlock(); }
+                        return new SimpleImmutableEntry<>(b.bookId, b);
+                    }
+                };
+            }
+        };
+    }
+
+    long hits(){ return hits.sum(); }
+    long misses(){ return misses.sum(); }
+    long evictions(){ return evictions.sum(); }
+
+    int cached(){
+        int n = 0;
+        for(Segment seg : segments) synchronized(seg){ n += seg.size(); }
+        return n;
+    }
+
+    String stats(){
+        long h = hits(), m = misses();
+        return String.format("Book cache: %d of %d books (limit %d), hit rate %.1f%% (%d hits, %d misses), %d evictions, %d MB of pages",
+                cached(), size, capacity, h + m == 0 ? 0.0 : 100.0 * h / (h + m), h, m, evictions(), end >> 20);
+    }
+
+    @Override public void close() throws IOException {
+        chunks.clear();
+        ch.close();
+        Files.deleteIfExists(path);
+    }
+
+    private int segment(int id){
+        int h = id * 0x9E3779B9;
+        return (h ^ h >>> 16) & (segments.length - 1);
+    }
+
+    private int find(int id){
+        int mask = keys.length - 1;
+        for(int i = (id * 0x9E3779B9) & mask;; i = (i + 1) & mask){
+            if(slotOf[i] == 0) return -1;
+            if(keys[i] == id) return slotOf[i] - 1;
+        }
+    }
+
+    // Called under the write lock for an id that is not present
+    private int insert(int id){
+        int slot = size;
+        if((slot + 1) * 4 > keys.length * 3) rehash(keys.length * 2);
+        if(slot == ids.length){
+            ids = Arrays.copyOf(ids, slot * 2);
+            offsets = Arrays.copyOf(offsets, slot * 2);
+        }
+        if(slot / CELL_PAGE == cells.length){
+            cells = Arrays.copyOf(cells, cells.length + 1);
+            cells[cells.length - 1] = new int[CELL_PAGE];
+        }
+        int mask = keys.length - 1, i = (id * 0x9E3779B9) & mask;
+        while(slotOf[i] != 0) i = (i + 1) & mask;
+        keys[i] = id;
+        slotOf[i] = slot + 1;
+        ids[slot] = id;
+        size = slot + 1;
+        return slot;
+    }
+
+    private void rehash(int length){
+        int[] oldKeys = keys, oldSlots = slotOf;
+        keys = new int[length];
+        slotOf = new int[length];
+        int mask = length - 1;
+        for(int j = 0; j < oldKeys.length; j++){
+            if(oldSlots[j] == 0) continue;
+            int i = (oldKeys[j] * 0x9E3779B9) & mask;
+            while(slotOf[i] != 0) i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            slotOf[i] = oldSlots[j];
+        }
+    }
+
+    // Called under the write lock; records never cross a chunk boundary
+    private long append(Book b){
+        int need = 3 * 4 + RecordCodec.maxSize(b.title) + RecordCodec.maxSize(b.author) + RecordCodec.maxSize(b.category);
+        if(need > CHUNK) throw new IllegalArgumentException("Book " + b.bookId + " is too large for a catalog page");
+        int c = (int)(end / CHUNK), pos = (int)(end % CHUNK);
+        if(pos + need > CHUNK){ c++; pos = 0; }
+        try{
+            while(chunks.size() <= c) chunks.add(ch.map(FileChannel.MapMode.READ_WRITE, (long) chunks.size() * CHUNK, CHUNK));
+        } catch(IOException e){ throw new UncheckedIOException(e); }
+        ByteBuffer out = chunks.get(c).duplicate();
+        out.position(pos);
+        RecordCodec.putString(out, b.title);
+        RecordCodec.putString(out, b.author);
+        RecordCodec.putString(out, b.category);
+        end = (long) c * CHUNK + out.position();
+        return (long) c * CHUNK + pos;
+    }
+
+    // Called under the read or write lock
+    private Book decode(int slot){
+        long at = offsets[slot];
+        ByteBuffer in = chunks.get((int)(at / CHUNK)).duplicate();
+        in.position((int)(at % CHUNK));
+        Book b = new Book(ids[slot], RecordCodec.getString(in), RecordCodec.getString(in), RecordCodec.getString(in));
+        b.attach(cells[slot / CELL_PAGE], slot % CELL_PAGE);
+        return b;
+    }
+}
+
+// Incremental persistence: every mutation is one appended record in library.log, and a compact
+// binary snapshot (library.snap) is written through a FileChannel every SNAPSHOT_EVERY records and on exit.
+// A mutation therefore costs one small write regardless of catalog size. A snapshot starts from a Cut of
+// the log and names it as its base; the log is then restarted with only the records after the cut, so a
+// crash in between is recovered by replaying the old log from the cut.
+class LibraryStore implements Closeable {
+    static final String LOG_FILE = "library.log";
+    static final String SNAPSHOT_FILE = "library.snap";
+    static final byte ADD_BOOK = 1, ADD_MEMBER = 2, ISSUE = 3, RETURN = 4, HOLD = 5;
+    private static final int LOG_MAGIC = 0x4C424C31;  // "LBL1"
+    private static final int SNAP_MAGIC_V1 = 0x4C425331; // "LBS1", no holds section
+    private static final int SNAP_MAGIC_V2 = 0x4C425332; // "LBS2", no due dates section
+    private static final int SNAP_MAGIC_V3 = 0x4C425333; // "LBS3", no base log position
+    private static final int SNAP_MAGIC = 0x4C425334; // "LBS4"
+    private static final int HEADER = 12;
+    private static final int SNAPSHOT_EVERY = 100_000;
+    private static final int SNAPSHOT_WINDOW = 1 << 26; // bytes of the snapshot mapped at a time
+
+    private final Path logPath, snapPath;
+    private FileChannel log;
+    private ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+    private long epoch;
+    private long recordsSinceSnapshot;
+    private long skipped; // records replayed by the last load that name an unknown book or member
+
+    LibraryStore(Path dir) throws IOException {
+        logPath = dir.resolve(LOG_FILE);
+        snapPath = dir.resolve(SNAPSHOT_FILE);
+        log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
     }
 
-    void markAsIssued(){ isIssued = true; }
-    void markAsReturned(){ isIssued = false; }
+    boolean hasData() throws IOException { return Files.exists(snapPath) || log.size() > HEADER; }
 
-    public String toCSV(){
-        return bookId + "|" + escape(title) + "|" + escape(author) + "|" + escape(category) + "|" + isIssued;
+    long skipped(){ return skipped; }
+
+    // The log up to 'offset' and the counters, holds and loans at that point, taken while no desk is
+    // changing anything. Books and members are read live when the snapshot is written; one that changed
+    // after the cut has a record past 'offset', and replaying that record sets it again.
+    static final class Cut {
+        final long epoch, offset, records;
+        final int nextBookId, nextMemberId, books, members;
+        final Map<Integer, List<Integer>> holds;
+        final Map<Integer, Long> loans;
+
+        private Cut(long epoch, long offset, long records, LibraryManager lm){
+            this.epoch = epoch; this.offset = offset; this.records = records;
+            nextBookId = lm.nextBookId(); nextMemberId = lm.nextMemberId();
+            books = lm.bookCount(); members = lm.memberCount();
+            holds = lm.holds().all();
+            loans = lm.dueDates().all();
+        }
     }
 
-    static Book fromCSV(String line){
-        String[] p = splitEscaped(line);
-        Book b = new Book(Integer.parseInt(p[0]), unescape(p[1]), unescape(p[2]), unescape(p[3]));
-        b.isIssued = Boolean.parseBoolean(p[4]);
-        return b;
+    // Loads the snapshot and replays the log written after it; a torn last record is cut off
+    void load(LibraryManager lm) throws IOException {
+        epoch = 0;
+        skipped = 0;
+        long[] base = { -1, HEADER };
+        if(Files.exists(snapPath)) epoch = readSnapshot(lm, base);
+        long end = HEADER;
+        boolean behind = false; // the snapshot was renamed but the log not restarted after its cut
+        if(log.size() >= HEADER){
+            ByteBuffer h = ByteBuffer.allocate(HEADER);
+            log.read(h, 0); h.flip();
+            if(h.getInt() != LOG_MAGIC) throw new IOException("Unsupported log format: " + logPath);
+            long logEpoch = h.getLong();
+            if(logEpoch == epoch) end = replay(lm, HEADER);
+            else if(logEpoch == base[0] && base[1] <= log.size()){ behind = true; end = replay(lm, base[1]); }
+        }
+        lm.reconcileHolders();
+        if(behind){ log.truncate(end); log.position(end); restartLog(base[1], epoch); }
+        else if(end == HEADER) resetLog(epoch);
+        else { log.truncate(end); log.position(end); }
     }
 
-    public String toString(){
-        return "["+bookId+"] "+title+" by "+author+" ("+category+") Issued:"+isIssued;
+    // Appends come from several desks; each record is written whole under the store's monitor
+    synchronized void addBook(Book b){
+        begin(ADD_BOOK, RecordCodec.maxSize(b));
+        buf.putInt(b.bookId); RecordCodec.putString(buf, b.title); RecordCodec.putString(buf, b.author); RecordCodec.putString(buf, b.category);
+        end();
+    }
+    // The same ADD_BOOK records as addBook, packed into one buffer that is written a megabyte at a time
+    synchronized void addBooks(List<Book> batch){
+        ByteBuffer out = ByteBuffer.allocate(1 << 20);
+        try{
+            for(Book b : batch){
+                int need = 9 + RecordCodec.maxSize(b.title) + RecordCodec.maxSize(b.author) + RecordCodec.maxSize(b.category);
+                if(out.remaining() < need){
+                    out.flip();
+                    while(out.hasRemaining()) log.write(out);
+                    out.clear();
+                    if(out.capacity() < need) out = ByteBuffer.allocate(need);
+                }
+                int at = out.position();
+                out.putInt(0).put(ADD_BOOK).putInt(b.bookId);
+                RecordCodec.putString(out, b.title); RecordCodec.putString(out, b.author); RecordCodec.putString(out, b.category);
+                out.putInt(at, out.position() - at - 4);
+            }
+            out.flip();
+            while(out.hasRemaining()) log.write(out);
+        } catch(IOException e){ throw new UncheckedIOException(e); }
+        recordsSinceSnapshot += batch.size();
     }
+    synchronized void addMember(Member m){
+        begin(ADD_MEMBER, RecordCodec.maxSize(m));
+        buf.putInt(m.memberId); RecordCodec.putString(buf, m.name); RecordCodec.putString(buf, m.email);
+        end();
+    }
+    synchronized void issue(int bookId, int memberId, long dueMillis){ begin(ISSUE); buf.putInt(bookId).putInt(memberId).putLong(dueMillis); end(); }
+    synchronized void returned(int bookId, int memberId){ begin(RETURN); buf.putInt(bookId).putInt(memberId); end(); }
+    synchronized void hold(int bookId, int memberId){ begin(HOLD); buf.putInt(bookId).putInt(memberId); end(); }
 
-    public int compareTo(Book o){
-        return this.title.compareToIgnoreCase(o.title);
+    synchronized boolean snapshotDue(){ return recordsSinceSnapshot >= SNAPSHOT_EVERY; }
+
+    // Called while no desk is changing anything, so the log ends on a whole record
+    Cut cut(LibraryManager lm) throws IOException {
+        long e, offset, records;
+        synchronized(this){ e = epoch; offset = log.position(); records = recordsSinceSnapshot; }
+        return new Cut(e, offset, records, lm);
+    }
+
+    // Writes the whole library to a new snapshot and restarts the log; the caller keeps desks out
+    void snapshot(LibraryManager lm) throws IOException { write(cut(lm), lm); }
+
+    // Writes the snapshot for a cut while desks keep appending, then restarts the log after the cut
+    void write(Cut c, LibraryManager lm) throws IOException {
+        Path tmp = snapPath.resolveSibling(SNAPSHOT_FILE + ".tmp");
+        try(FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            ByteBuffer out = ByteBuffer.allocate(1 << 20);
+            out.putInt(SNAP_MAGIC).putLong(c.epoch + 1).putLong(c.epoch).putLong(c.offset).putInt(c.nextBookId).putInt(c.nextMemberId);
+            out.putInt(c.books);
+            int written = 0;
+            for(Book b : lm.allBooks()){
+                if(b.bookId >= c.nextBookId) continue;
+                out = ensure(ch, out, RecordCodec.maxSize(b));
+                RecordCodec.putBook(out, b);
+                written++;
+            }
+            if(written != c.books) throw new IOException("Expected " + c.books + " books in the snapshot but found " + written);
+            out = ensure(ch, out, 4);
+            out.putInt(c.members);
+            written = 0;
+            for(Member m : lm.allMembers()){
+                if(m.memberId >= c.nextMemberId) continue;
+                int[] loans = m.issuedIds();
+                out = ensure(ch, out, RecordCodec.maxSize(m, loans.length));
+                RecordCodec.putMember(out, m, loans);
+                written++;
+            }
+            if(written != c.members) throw new IOException("Expected " + c.members + " members in the snapshot but found " + written);
+            out = ensure(ch, out, 4);
+            out.putInt(c.holds.size());
+            for(Map.Entry<Integer, List<Integer>> e : c.holds.entrySet()){
+                out = ensure(ch, out, 8 + 4 * e.getValue().size());
+                out.putInt(e.getKey()).putInt(e.getValue().size());
+                for(int id : e.getValue()) out.putInt(id);
+            }
+            out = ensure(ch, out, 4);
+            out.putInt(c.loans.size());
+            for(Map.Entry<Integer, Long> e : c.loans.entrySet()){
+                out = ensure(ch, out, 12);
+                out.putInt(e.getKey()).putLong(e.getValue());
+            }
+            out.flip();
+            while(out.hasRemaining()) ch.write(out);
+            ch.force(true);
+        }
+        synchronized(this){
+            Files.move(tmp, snapPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            restartLog(c.offset, c.epoch + 1);
+            epoch = c.epoch + 1;
+            recordsSinceSnapshot -= c.records;
+        }
+    }
+
+    public synchronized void close() throws IOException { log.close(); }
+
+    private void begin(byte type){ begin(type, 0); }
+    private void begin(byte type, int payload){
+        if(buf.capacity() < payload + 5) buf = ByteBuffer.allocate(payload + 5);
+        buf.clear(); buf.putInt(0).put(type);
+    }
+
+    // Frames the record as [length][type + payload] and appends it in one write
+    private void end(){
+        buf.putInt(0, buf.position() - 4);
+        buf.flip();
+        try{ while(buf.hasRemaining()) log.write(buf); }
+        catch(IOException e){ throw new UncheckedIOException(e); }
+        recordsSinceSnapshot++;
+    }
+
+    private long replay(LibraryManager lm, long from) throws IOException {
+        long size = log.size(), pos = from;
+        ByteBuffer len = ByteBuffer.allocate(4);
+        ByteBuffer body = ByteBuffer.allocate(4096);
+        while(pos + 4 <= size){
+            len.clear(); log.read(len, pos); len.flip();
+            int n = len.getInt();
+            if(n <= 0 || pos + 4 + n > size) break;
+            if(body.capacity() < n) body = ByteBuffer.allocate(n);
+            body.clear().limit(n);
+            log.read(body, pos + 4); body.flip();
+            byte type = body.get();
+            switch(type){
+                case ADD_BOOK: lm.restoreBook(new Book(body.getInt(), RecordCodec.getString(body), RecordCodec.getString(body), RecordCodec.getString(body))); break;
+                case ADD_MEMBER: lm.restoreMember(new Member(body.getInt(), RecordCodec.getString(body), RecordCodec.getString(body))); break;
+                case ISSUE: // records written before due dates end after the member id
+                    if(!lm.restoreIssue(body.getInt(), body.getInt(), body.remaining() >= 8 ? body.getLong() : 0)) skipped++;
+                    break;
+                case RETURN: if(!lm.restoreReturn(body.getInt(), body.getInt())) skipped++; break;
+                case HOLD: lm.holds().restore(body.getInt(), body.getInt()); break;
+                default: throw new IOException("Unknown log record " + type);
+            }
+            pos += 4 + n;
+            recordsSinceSnapshot++;
+        }
+        return pos;
+    }
+
+    // Returns the snapshot's epoch; base gets the log epoch and offset it was cut from, if it records them
+    private long readSnapshot(LibraryManager lm, long[] base) throws IOException {
+        try(FileChannel ch = FileChannel.open(snapPath, StandardOpenOption.READ)){
+            SnapshotWindow in = new SnapshotWindow(ch, SNAPSHOT_WINDOW);
+            int magic = in.getInt();
+            if(magic != SNAP_MAGIC && magic != SNAP_MAGIC_V3 && magic != SNAP_MAGIC_V2 && magic != SNAP_MAGIC_V1) throw new IOException("Not a library snapshot: " + snapPath);
+            long snapEpoch = in.getLong();
+            if(magic == SNAP_MAGIC){ base[0] = in.getLong(); base[1] = in.getLong(); }
+            lm.restoreCounters(in.getInt(), in.getInt());
+            for(int i = 0, n = in.getInt(); i < n; i++) lm.restoreBook(in.getBook());
+            for(int i = 0, n = in.getInt(); i < n; i++) lm.restoreMember(in.getMember());
+            if(magic != SNAP_MAGIC_V1){
+                for(int i = 0, n = in.getInt(); i < n; i++){
+                    int bookId = in.getInt();
+                    for(int j = 0, k = in.getInt(); j < k; j++) lm.holds().restore(bookId, in.getInt());
+                }
+            }
+            if(magic == SNAP_MAGIC || magic == SNAP_MAGIC_V3){
+                for(int i = 0, n = in.getInt(); i < n; i++) lm.dueDates().put(in.getInt(), in.getLong());
+            }
+            return snapEpoch;
+        }
+    }
+
+    // One mapping cannot pass 2 GB, so the snapshot is mapped a window at a time. Fixed-size fields move
+    // the window when they would cross its end; a record that runs off the end is decoded again from a
+    // window starting at the record, grown until the record fits.
+    private static final class SnapshotWindow {
+        private final FileChannel ch;
+        private final long size;
+        private int window;
+        private long base;
+        private MappedByteBuffer in;
+
+        SnapshotWindow(FileChannel ch, int window) throws IOException {
+            this.ch = ch;
+            this.size = ch.size();
+            this.window = window;
+            map(0);
+        }
+
+        int getInt() throws IOException { ensure(4); return in.getInt(); }
+        long getLong() throws IOException { ensure(8); return in.getLong(); }
+
+        Book getBook() throws IOException {
+            while(true){
+                int at = in.position();
+                try{ return RecordCodec.getBook(in); }
+                catch(BufferUnderflowException e){ retry(at); }
+            }
+        }
+
+        Member getMember() throws IOException {
+            while(true){
+                int at = in.position();
+                try{ return RecordCodec.getMember(in); }
+                catch(BufferUnderflowException e){ retry(at); }
+            }
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if(in.remaining() < bytes){
+                if(base + in.limit() == size) throw new EOFException("Truncated snapshot");
+                map(base + in.position());
+            }
+        }
+
+        private void retry(int at) throws IOException {
+            if(base + in.limit() == size) throw new EOFException("Truncated snapshot");
+            if(at == 0) window = (int) Math.min(Integer.MAX_VALUE, window * 2L);
+            map(base + at);
+        }
+
+        private void map(long from) throws IOException {
+            base = from;
+            in = ch.map(FileChannel.MapMode.READ_ONLY, from, Math.min(window, size - from));
+        }
+    }
+
+    // Moves the records after 'from' into a new log with the given epoch and appends to that from now on
+    private void restartLog(long from, long newEpoch) throws IOException {
+        Path tmp = logPath.resolveSibling(LOG_FILE + ".tmp");
+        FileChannel next = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try{
+            ByteBuffer h = ByteBuffer.allocate(HEADER);
+            h.putInt(LOG_MAGIC).putLong(newEpoch).flip();
+            while(h.hasRemaining()) next.write(h);
+            for(long at = from, end = log.position(); at < end; ){
+                long n = log.transferTo(at, end - at, next);
+                if(n <= 0) throw new EOFException("Log ends at " + at + " before " + end);
+                at += n;
+            }
+            next.force(true);
+            Files.move(tmp, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e){
+            next.close();
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        log.close();
+        log = next;
+    }
+
+    private void resetLog(long newEpoch) throws IOException {
+        ByteBuffer h = ByteBuffer.allocate(HEADER);
+        h.putInt(LOG_MAGIC).putLong(newEpoch).flip();
+        log.truncate(0);
+        log.write(h, 0);
+        log.force(true);
+        log.position(HEADER);
     }
 
-    static String escape(String s){ return s.replace("|","&#124;"); }
-    static String unescape(String s){ return s.replace("&#124;","|"); }
-    static String[] splitEscaped(String s){
-        // split on '|' not inside escapes (our simple escape replacement)
-        return s.split("\\|");
+    private static ByteBuffer ensure(FileChannel ch, ByteBuffer out, int bytes) throws IOException {
+        if(out.remaining() >= bytes) return out;
+        out.flip();
+        while(out.hasRemaining()) ch.write(out);
+        out.clear();
+        return out.capacity() >= bytes ? out : ByteBuffer.allocate(bytes);
     }
 }
 
-class Member implements Serializable {
-    int memberId;
-    String name;
-    String email;
-    List<Integer> issuedBooks = new ArrayList<>();
-    Queue<Integer> waitQueue = new LinkedList<>();
+// Issue, return, search and add as a local HTTP/JSON service, so many kiosks can share one library. It
+// runs on the JDK's built-in server bound to loopback; every exchange gets its own virtual thread when
+// the runtime has them (Java 21+) and a thread from a fixed pool otherwise. Handlers call the same
+// thread-safe LibraryManager methods as the menu, so kiosks and the console see the same state.
+//   GET  /books/search?q=words[&in=title|author|category|all][&limit=n]
+//   GET  /books/{id}
+//   POST /books   {"title": "...", "author": "...", "category": "..."}
+//   POST /issue   {"book": id, "member": id}
+//   POST /return  {"book": id, "member": id}
+// Launch with -Dlibrary.service.logErrors=true to print each request that fails with a 500.
+class LibraryService implements Closeable {
+    static final int DEFAULT_PORT = 8080;
+    private static final int MAX_BODY = 64 * 1024;
+    private static final int SEARCH_LIMIT = 50;
+    private static final boolean LOG_ERRORS = Boolean.getBoolean("library.service.logErrors");
 
-    Member(int id, String n, String e){
-        memberId = id; name = n; email = e;
+    private final LibraryManager lm;
+    private final HttpServer server;
+    private final ExecutorService workers;
+
+    interface Route { void handle(HttpExchange ex) throws IOException; }
+
+    // The server writes headers and body separately; with Nagle on, every response then waits ~40 ms
+    // for the client's delayed ACK. The JDK reads sun.net.httpserver.nodelay once, when the first server
+    // in the process is created, so callers use this before that; -Dsun.net.httpserver.nodelay=false wins.
+    static void preferNoDelay(){
+        if(System.getProperty("sun.net.httpserver.nodelay") == null) System.setProperty("sun.net.httpserver.nodelay", "true");
     }
 
-    void addIssuedBook(int bookId){ issuedBooks.add(bookId); }
-    void returnIssuedBook(int bookId){ issuedBooks.remove(Integer.valueOf(bookId)); }
-    public String toCSV(){
-        return memberId + "|" + escape(name) + "|" + escape(email) + "|" + issuedBooksToString();
+    LibraryService(LibraryManager lm, int port) throws IOException {
+        this.lm = lm;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        workers = workers();
+        server.setExecutor(workers);
+        server.createContext("/books", ex -> respond(ex, this::books));
+        server.createContext("/issue", ex -> respond(ex, e -> circulate(e, true)));
+        server.createContext("/return", ex -> respond(ex, e -> circulate(e, false)));
+    }
+
+    void start(){ server.start(); }
+
+    int port(){ return server.getAddress().getPort(); }
+
+    // Waits up to a second for exchanges in flight
+    public void close(){
+        server.stop(1);
+        workers.shutdown();
     }
-    static Member fromCSV(String line){
-        String[] p = line.split("\\|",4);
-        Member m = new Member(Integer.parseInt(p[0]), unescape(p[1]), unescape(p[2]));
-        if(p.length>3 && p[3].length()>0){
-            for(String s: p[3].split(",")) if(!s.isEmpty()) m.issuedBooks.add(Integer.parseInt(s));
+
+    // Looked up reflectively so the service still builds and runs on Java 17
+    private static ExecutorService workers(){
+        try{ return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null); }
+        catch(ReflectiveOperationException | UnsupportedOperationException e){
+            return Executors.newFixedThreadPool(Math.max(16, 4 * Runtime.getRuntime().availableProcessors()));
         }
-        return m;
     }
-    String issuedBooksToString(){
-        StringBuilder sb = new StringBuilder();
-        for(int i=0;i<issuedBooks.size();i++){
-            if(i>0) sb.append(",");
-            sb.append(issuedBooks.get(i));
+
+    // Bad input is a 400 with a message; anything else is logged and answered with a 500
+    private static void respond(HttpExchange ex, Route route) throws IOException {
+        try{ route.handle(ex); }
+        catch(IllegalArgumentException e){ send(ex, 400, error(e.getMessage())); }
+        catch(RuntimeException e){
+            if(LOG_ERRORS) System.out.println("Error serving " + ex.getRequestURI() + ": " + e);
+            send(ex, 500, error("internal error"));
         }
-        return sb.toString();
+        finally { ex.close(); }
     }
-    static String escape(String s){ return s.replace("|","&#124;"); }
-    static String unescape(String s){ return s.replace("&#124;","|"); }
 
-    public String toString(){
-        return "["+memberId+"] "+name+" <"+email+"> Issued:"+issuedBooks;
+    private void books(HttpExchange ex) throws IOException {
+        String path = ex.getRequestURI().getPath(), method = ex.getRequestMethod();
+        if(path.equals("/books/search") && method.equals("GET")) search(ex);
+        else if(path.equals("/books") && method.equals("POST")) add(ex);
+        else if(path.startsWith("/books/") && method.equals("GET")) show(ex, Integer.parseInt(path.substring(7)));
+        else send(ex, 404, error("no such endpoint"));
+    }
+
+    private void search(HttpExchange ex) throws IOException {
+        Map<String, String> params = query(ex.getRequestURI().getRawQuery());
+        String in = params.getOrDefault("in", "all");
+        int fields = in.equals("title") ? CatalogIndex.TITLE : in.equals("author") ? CatalogIndex.AUTHOR
+                : in.equals("category") ? CatalogIndex.CATEGORY : in.equals("all") ? CatalogIndex.ALL : -1;
+        if(fields < 0) throw new IllegalArgumentException("in must be title, author, category or all");
+        int limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : SEARCH_LIMIT;
+        List<Book> found = lm.searchBooks(params.getOrDefault("q", ""), fields);
+        StringBuilder sb = new StringBuilder("{\"total\":").append(found.size()).append(",\"books\":[");
+        for(int i = 0; i < Math.min(limit, found.size()); i++) book(i > 0 ? sb.append(',') : sb, found.get(i));
+        send(ex, 200, sb.append("]}").toString());
+    }
+
+    private void show(HttpExchange ex, int bookId) throws IOException {
+        Book b = lm.book(bookId);
+        if(b == null) send(ex, 404, error("book not found"));
+        else send(ex, 200, book(new StringBuilder(), b).toString());
+    }
+
+    private void add(HttpExchange ex) throws IOException {
+        Map<String, String> body = Json.object(body(ex));
+        Book b = lm.addBook(text(body, "title"), text(body, "author"), text(body, "category"));
+        send(ex, 201, book(new StringBuilder(), b).toString());
+    }
+
+    private void circulate(HttpExchange ex, boolean issue) throws IOException {
+        if(!ex.getRequestMethod().equals("POST")){ send(ex, 405, error("use POST")); return; }
+        Map<String, String> body = Json.object(body(ex));
+        int bookId = id(body, "book"), memberId = id(body, "member");
+        Circulation.Outcome o = issue ? lm.issue(bookId, memberId) : lm.returnBook(bookId, memberId);
+        StringBuilder sb = new StringBuilder("{\"result\":\"").append(o.result).append('"');
+        int status = 200;
+        switch(o.result){
+            case ISSUED: sb.append(",\"due\":").append(lm.dueDates().dueOf(bookId)); break;
+            case WAITLISTED: case ALREADY_WAITING: sb.append(",\"position\":").append(o.position); break;
+            case RETURNED: if(o.member != Book.ON_SHELF) sb.append(",\"issuedTo\":").append(o.member); break;
+            case BOOK_NOT_FOUND: case MEMBER_NOT_FOUND: status = 404; break;
+            default: status = 409; break;
+        }
+        send(ex, status, sb.append('}').toString());
+    }
+
+    private static StringBuilder book(StringBuilder sb, Book b){
+        sb.append("{\"id\":").append(b.bookId);
+        Json.quote(sb.append(",\"title\":"), b.title);
+        Json.quote(sb.append(",\"author\":"), b.author);
+        Json.quote(sb.append(",\"category\":"), b.category);
+        return sb.append(",\"issued\":").append(b.isIssued()).append('}');
+    }
+
+    private static String error(String message){
+        return Json.quote(new StringBuilder("{\"error\":"), message).append('}').toString();
+    }
+
+    private static String text(Map<String, String> body, String key){
+        String v = body.get(key);
+        if(v == null || v.trim().isEmpty()) throw new IllegalArgumentException(key + " cannot be empty");
+        return v.trim();
+    }
+
+    private static int id(Map<String, String> body, String key){
+        String v = body.get(key);
+        if(v == null) throw new IllegalArgumentException("missing " + key);
+        return Integer.parseInt(v);
+    }
+
+    private static String body(HttpExchange ex) throws IOException {
+        byte[] bytes = ex.getRequestBody().readNBytes(MAX_BODY + 1);
+        if(bytes.length > MAX_BODY) throw new IllegalArgumentException("request body over " + MAX_BODY + " bytes");
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, String> query(String raw){
+        Map<String, String> out = new HashMap<>();
+        if(raw == null) return out;
+        for(String pair : raw.split("&")){
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq), value = eq < 0 ? "" : pair.substring(eq + 1);
+            out.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return out;
+    }
+
+    private static void send(HttpExchange ex, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        ex.sendResponseHeaders(status, bytes.length);
+        try(OutputStream out = ex.getResponseBody()){ out.write(bytes); }
+    }
+
+    // Just enough JSON for the request bodies: one flat object whose values are strings, numbers or
+    // literals, read into a map of their text (null for null). Nested objects and arrays are rejected.
+    static final class Json {
+        private final String s;
+        private int pos;
+
+        private Json(String s){ this.s = s; }
+
+        static Map<String, String> object(String text){
+            Json j = new Json(text);
+            Map<String, String> out = new HashMap<>();
+            j.expect('{');
+            if(!j.take('}')){
+                do{
+                    String key = j.string();
+                    j.expect(':');
+                    out.put(key, j.value());
+                } while(j.take(','));
+                j.expect('}');
+            }
+            j.skip();
+            if(j.pos != text.length()) throw new IllegalArgumentException("unexpected text after the JSON object");
+            return out;
+        }
+
+        static StringBuilder quote(StringBuilder sb, String v){
+            sb.append('"');
+            for(int i = 0; i < v.length(); i++){
+                char c = v.charAt(i);
+                if(c == '"' || c == '\\') sb.append('\\').append(c);
+                else if(c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                else sb.append(c);
+            }
+            return sb.append('"');
+        }
+
+        private String value(){
+            skip();
+            if(pos < s.length() && s.charAt(pos) == '"') return string();
+            int start = pos;
+            while(pos < s.length() && ",}] \t\r\n".indexOf(s.charAt(pos)) < 0) pos++;
+            String v = s.substring(start, pos);
+            if(v.isEmpty() || v.charAt(0) == '{' || v.charAt(0) == '[') throw new IllegalArgumentException("expected a string, number or literal at " + start);
+            return v.equals("null") ? null : v;
+        }
+
+        private String string(){
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while(true){
+                if(pos >= s.length()) throw new IllegalArgumentException("unterminated string");
+                char c = s.charAt(pos++);
+                if(c == '"') return sb.toString();
+                if(c != '\\'){ sb.append(c); continue; }
+                if(pos >= s.length()) throw new IllegalArgumentException("unterminated string");
+                char e = s.charAt(pos++);
+                switch(e){
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'u':
+                        if(pos + 4 > s.length()) throw new IllegalArgumentException("bad \\u escape");
+                        sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+                        pos += 4;
+                        break;
+                    default: sb.append(e);
+                }
+            }
+        }
+
+        private void expect(char c){
+            if(!take(c)) throw new IllegalArgumentException("expected '" + c + "' at " + pos);
+        }
+
+        private boolean take(char c){
+            skip();
+            if(pos < s.length() && s.charAt(pos) == c){ pos++; return true; }
+            return false;
+        }
+
+        private void skip(){
+            while(pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++;
+        }
     }
 }
 
 public class LibraryManager {
-    private Map<Integer, Book> books = new HashMap<>();
-    private Map<Integer, Member> members = new HashMap<>();
-    private Set<String> categories = new HashSet<>();
-    private Map<Integer, Queue<Integer>> waitingList = new HashMap<>(); // bookId -> queue of memberIds
+    private Map<Integer, Book> books = new ConcurrentHashMap<>();
+    private Map<Integer, Member> members = new ConcurrentHashMap<>();
+    private FacetCounts facets = new FacetCounts();
+    private CatalogIndex index = new CatalogIndex();
+    private SortedView byTitle = new SortedView(), byAuthor = new SortedView(), byCategory = new SortedView();
+    private Reservations holds = new Reservations(null);
+    private DueDates dueDates = new DueDates();
+    private Circulation circulation = new Circulation(books, members, holds, facets, dueDates, null);
+    // circulation runs under the read lock from any number of desks; a snapshot takes the write lock to cut the log
+    private final ReentrantReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+    // searches and sorted pages from many kiosks share the index and views; adds and imports change them
+    private final ReentrantReadWriteLock catalogLock = new ReentrantReadWriteLock();
     private int nextBookId = 100;
     private int nextMemberId = 200;
-    private final String booksFile = "books.txt";
-    private final String membersFile = "members.txt";
+    private final Path booksFile, membersFile, holdsFile, loansFile;
+    private final Path dataDir;
     private Scanner sc = new Scanner(System.in);
+    private LibraryStore store; // null when library.log cannot be opened
+    // at most one snapshot is written at a time, off the desks' threads; its failure is kept for the next mutation
+    private final AtomicBoolean snapshotting = new AtomicBoolean();
+    private volatile Thread snapshotter;
+    private volatile IOException snapshotFailure;
+    private static final DateTimeFormatter DUE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
     private static final Pattern EMAIL = Pattern.compile("^[\\w.+\\-]+@[\\w\\-]+\\.[A-Za-z]{2,}$");
 
+    LibraryManager(){ this(Paths.get(".")); }
+
+    LibraryManager(Path dir){ this(dir, 0); }
+
+    // With cachedBooks > 0 the catalog is paged from disk and at most that many Book objects stay cached
+    LibraryManager(Path dir, int cachedBooks){
+        dataDir = dir;
+        booksFile = dir.resolve("books.txt");
+        membersFile = dir.resolve("members.txt");
+        holdsFile = dir.resolve("holds.txt");
+        loansFile = dir.resolve("loans.txt");
+        if(cachedBooks > 0){
+            try{
+                books = new PagedCatalog(dir, cachedBooks);
+                circulation = new Circulation(books, members, holds, facets, dueDates, null);
+            } catch(IOException e){ System.out.println("Error opening catalog pages: "+e.getMessage()+". Keeping all books in memory."); }
+        }
+    }
+
+    // java LibraryManager [cached books]: a count switches to the paged catalog for very large libraries
+    // java LibraryManager serve [port] [cached books]: no menu, the library answers LibraryService requests
     public static void main(String[] args){
-        LibraryManager lm = new LibraryManager();
-        lm.loadFromFile();
+        if(args.length > 0 && args[0].equals("serve")){
+            serve(args.length > 1 ? Integer.parseInt(args[1]) : LibraryService.DEFAULT_PORT, args.length > 2 ? Integer.parseInt(args[2]) : 0);
+            return;
+        }
+        LibraryManager lm = new LibraryManager(Paths.get("."), args.length > 0 ? Integer.parseInt(args[0]) : 0);
+        lm.load();
         lm.mainMenu();
     }
 
+    // Serves until the process is stopped; the shutdown hook saves like Exit in the menu
+    static void serve(int port, int cachedBooks){
+        LibraryService.preferNoDelay();
+        LibraryManager lm = new LibraryManager(Paths.get("."), cachedBooks);
+        lm.load();
+        LibraryService service;
+        try{ service = new LibraryService(lm, port); }
+        catch(IOException e){ System.out.println("Error starting service on port "+port+": "+e.getMessage()); lm.close(); return; }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            service.close();
+            lm.saveToFile();
+            lm.snapshot();
+            lm.close();
+        }));
+        service.start();
+        System.out.println("Serving the library on http://localhost:"+service.port()+"/ (Ctrl+C to save and stop)");
+    }
+
     void mainMenu(){
         try{
             while(true){
+                remindOverdue();
                 System.out.println("\n=== City Library Digital Management System ===");
                 System.out.println("1. Add Book");
                 System.out.println("2. Add Member");
@@ -113,7 +2278,11 @@ public class LibraryManager {
                 System.out.println("5. Search Books");
                 System.out.println("6. Sort Books");
                 System.out.println("7. Show All Books / Members");
-                System.out.println("8. Exit");
+                System.out.println("8. Member Reservations");
+                System.out.println("9. Availability Dashboard");
+                System.out.println("10. Overdue / Due Soon");
+                System.out.println("11. Bulk Import");
+                System.out.println("12. Exit");
                 System.out.print("Enter choice: ");
                 String line = sc.nextLine().trim();
                 if(line.isEmpty()) continue;
@@ -127,12 +2296,17 @@ public class LibraryManager {
                     case 5: searchBooks(); break;
                     case 6: sortBooksMenu(); break;
                     case 7: showAll(); break;
-                    case 8: saveToFile(); System.out.println("Saved. Exiting."); return;
+                    case 8: showReservations(); break;
+                    case 9: showDashboard(); break;
+                    case 10: showDueDates(); break;
+                    case 11: importBooks(); break;
+                    case 12: saveToFile(); snapshot(); System.out.println("Saved. Exiting."); return;
                     default: System.out.println("Invalid choice."); break;
                 }
             }
         } finally {
             sc.close();
+            close();
         }
     }
 
@@ -145,16 +2319,83 @@ public class LibraryManager {
             System.out.print("Enter Category: ");
             String category = sc.nextLine().trim();
             if(title.isEmpty()||author.isEmpty()||category.isEmpty()){ System.out.println("Fields cannot be empty."); return; }
-            Book b = new Book(nextBookId++, title, author, category);
-            books.put(b.bookId, b);
-            categories.add(category);
-            saveToFile();
+            Book b = addBook(title, author, category);
             System.out.println("Book added with ID: " + b.bookId);
         } catch(Exception e){
             System.out.println("Error adding book: " + e.getMessage());
         }
     }
 
+    // Catalog edits come from one desk at a time; searches wait for the index and views under catalogLock
+    synchronized Book addBook(String title, String author, String category){
+        Book b;
+        snapshotLock.readLock().lock();
+        try{
+            b = new Book(nextBookId++, title, author, category);
+            books.put(b.bookId, b);
+            catalogLock.writeLock().lock();
+            try{ indexBook(b); }
+            finally { catalogLock.writeLock().unlock(); }
+            facets.added(b);
+            if(store != null) store.addBook(b);
+        } finally { snapshotLock.readLock().unlock(); }
+        maybeSnapshot();
+        return b;
+    }
+
+    void importBooks(){
+        System.out.print("Feed file (title|author|category per line): ");
+        Path feed = Paths.get(sc.nextLine().trim());
+        if(!Files.isRegularFile(feed)){ System.out.println("File not found."); return; }
+        try{
+            long start = System.nanoTime();
+            ImportResult r = importBooks(feed);
+            if(r.imported > 0) System.out.println("Imported " + r.imported + " books, IDs " + r.firstId + "-" + (r.firstId + r.imported - 1) + ".");
+            else System.out.println("No books imported.");
+            if(r.rejected > 0) System.out.println("Rejected " + r.rejected + " malformed lines.");
+            System.out.printf("Took %.1f s.%n", (System.nanoTime() - start) / 1e9);
+        } catch(IOException | UncheckedIOException e){
+            System.out.println("Error importing books: " + e.getMessage());
+        }
+    }
+
+    // Outcome of one bulk import: books added with consecutive ids from firstId, and lines rejected
+    static final class ImportResult {
+        final int imported, rejected, firstId;
+        ImportResult(int imported, int rejected, int firstId){ this.imported = imported; this.rejected = rejected; this.firstId = firstId; }
+    }
+
+    // Adds every valid line of a publisher feed. The file is parsed in parallel straight from its
+    // mapping, the books take one block of ids in file order, the map, counters, index and views are
+    // built in one batched pass, and the log receives the books in megabyte writes. Desks keep serving
+    // meanwhile; a snapshot waits for the import and is taken right after it if one is due.
+    synchronized ImportResult importBooks(Path feed) throws IOException {
+        CatalogLoader loader = new CatalogLoader(feed);
+        List<Book> batch = loader.rows(LibraryManager::feedRow);
+        int first;
+        snapshotLock.readLock().lock();
+        try{
+            first = nextBookId;
+            for(int i = 0; i < batch.size(); i++) batch.get(i).bookId = first + i;
+            nextBookId += batch.size();
+            for(Book b : batch) books.put(b.bookId, b);
+            catalogLock.writeLock().lock();
+            try{ indexBooks(batch); }
+            finally { catalogLock.writeLock().unlock(); }
+            for(Book b : batch) facets.added(b);
+            if(store != null) store.addBooks(batch);
+        } finally { snapshotLock.readLock().unlock(); }
+        maybeSnapshot();
+        return new ImportResult(batch.size(), (int) loader.malformed(), first);
+    }
+
+    // Feed line: title|author|category, escaped as in books.txt; empty fields are rejected
+    private static Book feedRow(CatalogLoader.Row r){
+        String title = r.text().trim(), author = r.text().trim(), category = r.text().trim();
+        if(title.isEmpty() || author.isEmpty() || category.isEmpty() || r.hasMore()) throw new IllegalArgumentException("Expected title|author|category");
+        return new Book(0, title, author, category);
+    }
+
     void addMember(){
         try{
             System.out.print("Enter Member Name: ");
@@ -163,35 +2404,38 @@ public class LibraryManager {
             String email = sc.nextLine().trim();
             if(name.isEmpty()||email.isEmpty()){ System.out.println("Fields cannot be empty."); return; }
             if(!EMAIL.matcher(email).matches()){ System.out.println("Invalid email format."); return; }
-            Member m = new Member(nextMemberId++, name, email);
-            members.put(m.memberId, m);
-            saveToFile();
+            Member m = addMember(name, email);
             System.out.println("Member added with ID: " + m.memberId);
         } catch(Exception e){
             System.out.println("Error adding member: " + e.getMessage());
         }
     }
 
+    synchronized Member addMember(String name, String email){
+        Member m;
+        snapshotLock.readLock().lock();
+        try{
+            m = new Member(nextMemberId++, name, email);
+            members.put(m.memberId, m);
+            if(store != null) store.addMember(m);
+        } finally { snapshotLock.readLock().unlock(); }
+        maybeSnapshot();
+        return m;
+    }
+
     void issueBook(){
         try{
             System.out.print("Enter Book ID: "); int bookId = Integer.parseInt(sc.nextLine().trim());
             System.out.print("Enter Member ID: "); int memId = Integer.parseInt(sc.nextLine().trim());
-            Book b = books.get(bookId);
-            Member m = members.get(memId);
-            if(b==null){ System.out.println("Book not found."); return; }
-            if(m==null){ System.out.println("Member not found."); return; }
-            if(b.isIssued){
-                System.out.println("Book is already issued. Adding to waiting list.");
-                waitingList.putIfAbsent(bookId, new LinkedList<>());
-                Queue<Integer> q = waitingList.get(bookId);
-                if(!q.contains(memId)){ q.add(memId); System.out.println("Added to wait list position: " + q.size()); }
-                else System.out.println("Already in wait list.");
-                return;
+            Circulation.Outcome o = issue(bookId, memId);
+            switch(o.result){
+                case BOOK_NOT_FOUND: System.out.println("Book not found."); break;
+                case MEMBER_NOT_FOUND: System.out.println("Member not found."); break;
+                case ALREADY_HOLDS: System.out.println("Member already has this book."); break;
+                case ALREADY_WAITING: System.out.println("Book is already issued. Already in wait list at position " + o.position + "."); break;
+                case WAITLISTED: System.out.println("Book is already issued. Adding to waiting list.\nAdded to wait list position: " + o.position); break;
+                default: System.out.println("Book issued to member. Due " + formatDue(dueDates.dueOf(bookId)) + "."); break;
             }
-            b.markAsIssued();
-            m.addIssuedBook(bookId);
-            saveToFile();
-            System.out.println("Book issued to member.");
         } catch(NumberFormatException e){ System.out.println("Invalid ID."); }
     }
 
@@ -199,60 +2443,180 @@ public class LibraryManager {
         try{
             System.out.print("Enter Book ID: "); int bookId = Integer.parseInt(sc.nextLine().trim());
             System.out.print("Enter Member ID: "); int memId = Integer.parseInt(sc.nextLine().trim());
-            Book b = books.get(bookId);
-            Member m = members.get(memId);
-            if(b==null || m==null){ System.out.println("Book or member not found."); return; }
-            if(!m.issuedBooks.contains(bookId)){ System.out.println("This member did not issue this book."); return; }
-            b.markAsReturned();
-            m.returnIssuedBook(bookId);
-            // if waiting list present, issue automatically to next member
-            Queue<Integer> q = waitingList.get(bookId);
-            if(q!=null && !q.isEmpty()){
-                int nextMem = q.poll();
-                Member nm = members.get(nextMem);
-                if(nm!=null){
-                    b.markAsIssued();
-                    nm.addIssuedBook(bookId);
-                    System.out.println("Book auto-issued to waiting member ID: "+nextMem);
-                }
+            Circulation.Outcome o = returnBook(bookId, memId);
+            switch(o.result){
+                case BOOK_NOT_FOUND: case MEMBER_NOT_FOUND: System.out.println("Book or member not found."); break;
+                case NOT_HELD: System.out.println("This member did not issue this book."); break;
+                default:
+                    if(o.member != Book.ON_SHELF) System.out.println("Book auto-issued to waiting member ID: "+o.member+", due "+formatDue(dueDates.dueOf(bookId))+".");
+                    System.out.println("Book returned successfully.");
+            }
+        } catch(NumberFormatException e){ System.out.println("Invalid ID."); }
+    }
+
+    void showReservations(){
+        try{
+            System.out.print("Enter Member ID: "); int memId = Integer.parseInt(sc.nextLine().trim());
+            if(!members.containsKey(memId)){ System.out.println("Member not found."); return; }
+            List<Integer> reserved = holds.reservedBy(memId);
+            if(reserved.isEmpty()){ System.out.println("No reservations."); return; }
+            for(int bookId : reserved){
+                int pos = holds.position(bookId, memId);
+                if(pos > 0) System.out.println(books.get(bookId) + " - position " + pos);
             }
-            saveToFile();
-            System.out.println("Book returned successfully.");
         } catch(NumberFormatException e){ System.out.println("Invalid ID."); }
     }
 
+    // Everything overdue and everything due within 24 hours, read from the due-date order
+    void showDueDates(){
+        long now = System.currentTimeMillis();
+        List<Integer> overdue = dueDates.overdue(now);
+        System.out.println("Overdue (" + overdue.size() + "):");
+        for(int id : overdue) System.out.println(loanLine(id));
+        List<Integer> soon = dueDates.dueBetween(now, now + 24L * 60 * 60 * 1000);
+        System.out.println("Due in the next 24 hours (" + soon.size() + "):");
+        for(int id : soon) System.out.println(loanLine(id));
+    }
+
+    // Reports loans that went overdue since the last menu; costs nothing when there are none
+    private void remindOverdue(){
+        List<Integer> late = dueDates.newlyOverdue(System.currentTimeMillis());
+        if(late.isEmpty()) return;
+        System.out.println("\nReminder: " + late.size() + " book(s) became overdue:");
+        for(int id : late) System.out.println(loanLine(id));
+    }
+
+    private String loanLine(int bookId){
+        return books.get(bookId) + " - member " + holderOf(bookId) + ", due " + formatDue(dueDates.dueOf(bookId));
+    }
+
+    private static String formatDue(long millis){ return DUE_FORMAT.format(Instant.ofEpochMilli(millis)); }
+
+    DueDates dueDates(){ return dueDates; }
+
+    // Safe to call from many threads at once
+    Circulation.Outcome issue(int bookId, int memId){
+        Circulation.Outcome o;
+        snapshotLock.readLock().lock();
+        try{ o = circulation.issue(bookId, memId); }
+        finally { snapshotLock.readLock().unlock(); }
+        maybeSnapshot();
+        return o;
+    }
+
+    Circulation.Outcome returnBook(int bookId, int memId){
+        Circulation.Outcome o;
+        snapshotLock.readLock().lock();
+        try{ o = circulation.returnBook(bookId, memId); }
+        finally { snapshotLock.readLock().unlock(); }
+        maybeSnapshot();
+        return o;
+    }
+
     void searchBooks(){
-        System.out.println("Search by: 1.Title 2.Author 3.Category");
+        System.out.println("Search by: 1.Title 2.Author 3.Category 4.All");
         String s = sc.nextLine().trim();
         int ch = 0;
         try{ ch = Integer.parseInt(s);}catch(Exception e){ System.out.println("Invalid."); return; }
+        int[] fields = {0, CatalogIndex.TITLE, CatalogIndex.AUTHOR, CatalogIndex.CATEGORY, CatalogIndex.ALL};
+        if(ch<1 || ch>4){ System.out.println("Invalid."); return; }
         System.out.print("Enter search term: ");
-        String term = sc.nextLine().trim().toLowerCase();
-        List<Book> res = new ArrayList<>();
-        for(Book b : books.values()){
-            if(ch==1 && b.title.toLowerCase().contains(term)) res.add(b);
-            if(ch==2 && b.author.toLowerCase().contains(term)) res.add(b);
-            if(ch==3 && b.category.toLowerCase().contains(term)) res.add(b);
-        }
+        List<Book> res = searchBooks(sc.nextLine().trim(), fields[ch]);
         if(res.isEmpty()) System.out.println("No results.");
         else res.forEach(System.out::println);
     }
 
+    // Books matching every word of the query (whole word, prefix or substring), best matches first.
+    // The query is split into words the way the indexer splits titles, so "sci-fi", "O'Brien" and
+    // "J.K. Rowling" are looked up word by word. Only a query with no letters or digits at all ("#", "++")
+    // keeps the old case-insensitive substring scan over the chosen fields, in id order.
+    List<Book> searchBooks(String query, int fields){
+        List<Integer> ids;
+        catalogLock.readLock().lock();
+        try{ ids = onlySymbols(query) ? scan(query.trim(), fields) : index.search(query, fields); }
+        finally { catalogLock.readLock().unlock(); }
+        List<Book> res = new ArrayList<>(ids.size());
+        for(int id : ids) res.add(books.get(id));
+        return res;
+    }
+
+    // True when CatalogIndex.tokens would find no word in a query that is not blank
+    private static boolean onlySymbols(String query){
+        boolean symbols = false;
+        for(int i = 0; i < query.length(); i++){
+            char c = query.charAt(i);
+            if(Character.isLetterOrDigit(c)) return false;
+            if(!Character.isWhitespace(c)) symbols = true;
+        }
+        return symbols;
+    }
+
+    private List<Integer> scan(String query, int fields){
+        String q = query.toLowerCase(Locale.ROOT);
+        List<Integer> ids = new ArrayList<>();
+        for(Book b : books.values()){
+            if(((fields & CatalogIndex.TITLE) != 0 && b.title.toLowerCase(Locale.ROOT).contains(q))
+                    || ((fields & CatalogIndex.AUTHOR) != 0 && b.author.toLowerCase(Locale.ROOT).contains(q))
+                    || ((fields & CatalogIndex.CATEGORY) != 0 && b.category.toLowerCase(Locale.ROOT).contains(q))) ids.add(b.bookId);
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
     void sortBooksMenu(){
         System.out.println("Sort by: 1.Title 2.Author 3.Category");
         String s = sc.nextLine().trim();
         int ch = 0;
         try{ ch = Integer.parseInt(s);}catch(Exception e){ System.out.println("Invalid."); return; }
-        List<Book> list = new ArrayList<>(books.values());
-        switch(ch){
-            case 1: Collections.sort(list); break;
-            case 2: Collections.sort(list, Comparator.comparing(b -> b.author.toLowerCase())); break;
-            case 3: Collections.sort(list, Comparator.comparing(b -> b.category.toLowerCase())); break;
-            default: System.out.println("Invalid."); return;
+        if(ch<1 || ch>3){ System.out.println("Invalid."); return; }
+        System.out.print("Show positions (e.g. 1000-1050, blank for all): ");
+        String range = sc.nextLine().trim();
+        int from = 1, to = books.size();
+        try{
+            if(!range.isEmpty()){
+                String[] p = range.split("-", 2);
+                from = Integer.parseInt(p[0].trim());
+                to = p.length > 1 ? Integer.parseInt(p[1].trim()) : from;
+            }
+        } catch(NumberFormatException e){ System.out.println("Invalid range."); return; }
+        List<Book> page = sortedBooks(ch, from - 1, to - from + 1);
+        if(page.isEmpty()) System.out.println("No books in that range.");
+        else page.forEach(System.out::println);
+    }
+
+    // count books from 0-based position 'from' in title (1), author (2) or category (3) order
+    List<Book> sortedBooks(int by, int from, int count){
+        SortedView view = by == 1 ? byTitle : by == 2 ? byAuthor : byCategory;
+        List<Integer> ids;
+        catalogLock.readLock().lock();
+        try{ ids = view.page(from, count); }
+        finally { catalogLock.readLock().unlock(); }
+        List<Book> res = new ArrayList<>(ids.size());
+        for(int id : ids) res.add(books.get(id));
+        return res;
+    }
+
+    // Per-category (and optionally per-author) availability from the live counters, no catalog scan
+    void showDashboard(){
+        System.out.println("Show: 1.Categories 2.Authors");
+        String s = sc.nextLine().trim();
+        SortedMap<String, FacetCounts.Facet> rows;
+        if(s.equals("1")) rows = facets.categories();
+        else if(s.equals("2")) rows = facets.authors();
+        else { System.out.println("Invalid."); return; }
+        if(rows.isEmpty()){ System.out.println("No books."); return; }
+        System.out.printf("%-30s %8s %8s %10s%n", "Name", "Total", "Issued", "Available");
+        for(Map.Entry<String, FacetCounts.Facet> e : rows.entrySet()){
+            FacetCounts.Facet f = e.getValue();
+            System.out.printf("%-30s %8d %8d %10d%n", e.getKey(), f.total(), f.issued(), f.available());
         }
-        list.forEach(System.out::println);
+        if(books instanceof PagedCatalog) System.out.println(((PagedCatalog) books).stats());
     }
 
+    FacetCounts facets(){ return facets; }
+    // The paged catalog's cache counters, or null when every book is on the heap
+    PagedCatalog pagedCatalog(){ return books instanceof PagedCatalog ? (PagedCatalog) books : null; }
+
     void showAll(){
         System.out.println("\nBooks:");
         if(books.isEmpty()) System.out.println("No books.");
@@ -260,42 +2624,256 @@ public class LibraryManager {
         System.out.println("\nMembers:");
         if(members.isEmpty()) System.out.println("No members.");
         else members.values().forEach(System.out::println);
-        System.out.println("\nCategories: " + categories);
+        System.out.println("\nCategories: " + facets.categories().keySet());
     }
 
     void saveToFile(){
-        try(BufferedWriter bw = Files.newBufferedWriter(Paths.get(booksFile))){
+        try(BufferedWriter bw = Files.newBufferedWriter(booksFile)){
             for(Book b : books.values()) bw.write(b.toCSV()+"\n");
         } catch(IOException e){ System.out.println("Error saving books: "+e.getMessage()); }
-        try(BufferedWriter bw = Files.newBufferedWriter(Paths.get(membersFile))){
+        try(BufferedWriter bw = Files.newBufferedWriter(membersFile)){
             for(Member m : members.values()) bw.write(m.toCSV()+"\n");
         } catch(IOException e){ System.out.println("Error saving members: "+e.getMessage()); }
+        try(BufferedWriter bw = Files.newBufferedWriter(holdsFile)){
+            for(Map.Entry<Integer, List<Integer>> e : holds.all().entrySet()){
+                StringBuilder sb = new StringBuilder().append(e.getKey()).append('|');
+                for(int i = 0; i < e.getValue().size(); i++) sb.append(i > 0 ? "," : "").append(e.getValue().get(i));
+                bw.write(sb.append('\n').toString());
+            }
+        } catch(IOException e){ System.out.println("Error saving holds: "+e.getMessage()); }
+        try(BufferedWriter bw = Files.newBufferedWriter(loansFile)){
+            for(Map.Entry<Integer, Long> e : dueDates.all().entrySet()) bw.write(e.getKey()+"|"+e.getValue()+"\n");
+        } catch(IOException e){ System.out.println("Error saving due dates: "+e.getMessage()); }
+    }
+
+    // Prefers the binary snapshot + change log; falls back to books.txt / members.txt on first run
+    void load(){
+        try{
+            store = new LibraryStore(dataDir);
+            holds = new Reservations(store);
+            boolean firstRun = !store.hasData();
+            store.load(this);
+            if(store.skipped() > 0) System.out.println("Skipped "+store.skipped()+" log records for unknown books or members in "+dataDir.resolve(LibraryStore.LOG_FILE));
+            if(firstRun){
+                // migrate the text files into a snapshot so later log records apply on top of them
+                loadFromFile();
+                if(!books.isEmpty() || !members.isEmpty()) snapshot();
+            }
+        } catch(IOException e){
+            System.out.println("Error opening library log: "+e.getMessage()+". Falling back to text files.");
+            closeStore();
+            holds = new Reservations(null);
+            loadFromFile();
+        }
+        facets.rebuild(books.values());
+        circulation = new Circulation(books, members, holds, facets, dueDates, store);
+    }
+
+    void snapshot(){
+        if(store == null) return;
+        awaitSnapshot();
+        snapshotFailure = null; // this snapshot replaces the one that failed
+        snapshotLock.writeLock().lock();
+        try{ store.snapshot(this); }
+        catch(IOException e){ System.out.println("Error writing snapshot: "+e.getMessage()); }
+        finally { snapshotLock.writeLock().unlock(); }
+    }
+
+    // The write lock is held only to cut the log and copy the holds and loans; the snapshot itself is
+    // written by a background thread while desks carry on. A failed write leaves the log whole, so it is
+    // thrown from the next mutation as a log write would be and the snapshot is tried again later.
+    private void maybeSnapshot(){
+        IOException failure = snapshotFailure;
+        if(failure != null){
+            snapshotFailure = null;
+            throw new UncheckedIOException("Error writing snapshot", failure);
+        }
+        LibraryStore s = store;
+        if(s == null || !s.snapshotDue() || !snapshotting.compareAndSet(false, true)) return;
+        LibraryStore.Cut cut;
+        snapshotLock.writeLock().lock();
+        try{ cut = s.cut(this); }
+        catch(IOException e){ snapshotting.set(false); throw new UncheckedIOException(e); }
+        finally { snapshotLock.writeLock().unlock(); }
+        Thread t = new Thread(() -> {
+            try{ s.write(cut, this); }
+            catch(IOException e){ snapshotFailure = e; }
+            finally { snapshotting.set(false); }
+        }, "library-snapshot");
+        t.setDaemon(true);
+        snapshotter = t;
+        t.start();
+    }
+
+    // Lets a snapshot in progress finish before the store is snapshotted again or closed
+    private void awaitSnapshot(){
+        Thread t = snapshotter;
+        if(t == null) return;
+        boolean interrupted = false;
+        while(t.isAlive()){
+            try{ t.join(); }
+            catch(InterruptedException e){ interrupted = true; }
+        }
+        if(interrupted) Thread.currentThread().interrupt();
+    }
+
+    private void closeStore(){
+        if(store == null) return;
+        awaitSnapshot();
+        IOException failure = snapshotFailure;
+        if(failure != null) System.out.println("Error writing snapshot: "+failure.getMessage()+". The log keeps every change.");
+        try{ store.close(); } catch(IOException e){ System.out.println("Error closing library log: "+e.getMessage()); }
+        store = null;
+    }
+
+    void close(){
+        closeStore();
+        if(books instanceof PagedCatalog){
+            try{ ((PagedCatalog) books).close(); } catch(IOException e){ System.out.println("Error closing catalog pages: "+e.getMessage()); }
+        }
+    }
+
+    private void indexBook(Book b){
+        index.add(b);
+        byTitle.add(b.title, b.bookId);
+        byAuthor.add(b.author, b.bookId);
+        byCategory.add(b.category, b.bookId);
+    }
+
+    // The batched form of indexBook: three index fields and three views, each built in one pass and
+    // side by side since none of them shares state with another
+    private void indexBooks(List<Book> batch){
+        int n = batch.size();
+        int[] ids = new int[n];
+        String[] titles = new String[n], authors = new String[n], categories = new String[n];
+        for(int i = 0; i < n; i++){
+            Book b = batch.get(i);
+            ids[i] = b.bookId; titles[i] = b.title; authors[i] = b.author; categories[i] = b.category;
+        }
+        List<Runnable> parts = Arrays.asList(
+            () -> index.addAll(CatalogIndex.TITLE, ids, titles),
+            () -> index.addAll(CatalogIndex.AUTHOR, ids, authors),
+            () -> index.addAll(CatalogIndex.CATEGORY, ids, categories),
+            () -> byTitle.addAll(titles, ids),
+            () -> byAuthor.addAll(authors, ids),
+            () -> byCategory.addAll(categories, ids));
+        parts.parallelStream().forEach(Runnable::run);
+    }
+
+    // Hooks used by LibraryStore while loading
+    int nextBookId(){ return nextBookId; }
+    int nextMemberId(){ return nextMemberId; }
+    int bookCount(){ return books.size(); }
+    Book book(int id){ return books.get(id); }
+    int memberCount(){ return members.size(); }
+    Collection<Book> allBooks(){ return books.values(); }
+    Collection<Member> allMembers(){ return members.values(); }
+    void restoreCounters(int nextBook, int nextMember){ nextBookId = nextBook; nextMemberId = nextMember; }
+    void restoreBook(Book b){
+        books.put(b.bookId, b);
+        indexBook(b);
+        nextBookId = Math.max(nextBookId, b.bookId+1);
+    }
+    void restoreMember(Member m){
+        members.put(m.memberId, m);
+        nextMemberId = Math.max(nextMemberId, m.memberId+1);
+    }
+    // dueMillis is 0 for loans made before due dates were kept; reconcileHolders() gives them one.
+    // Returns false, changing nothing, when the book or member is unknown.
+    boolean restoreIssue(int bookId, int memId, long dueMillis){
+        Book b = books.get(bookId);
+        Member m = members.get(memId);
+        if(b == null || m == null) return false;
+        b.release(memId);
+        m.addIssuedBook(bookId);
+        holds.served(bookId, memId);
+        if(dueMillis > 0) dueDates.put(bookId, dueMillis);
+        return true;
+    }
+    Reservations holds(){ return holds; }
+
+    // Who has the book: a member id, Book.ON_SHELF, or -1 if there is no such book. Book.holder is the
+    // book -> member index, so this is one map lookup.
+    int holderOf(int bookId){
+        Book b = books.get(bookId);
+        return b == null ? -1 : b.settledHolder();
+    }
+    boolean restoreReturn(int bookId, int memId){
+        Book b = books.get(bookId);
+        Member m = members.get(memId);
+        if(b == null || m == null) return false;
+        b.markAsReturned();
+        m.returnIssuedBook(bookId);
+        dueDates.remove(bookId);
+        return true;
+    }
+
+    // Files only flag a book as issued; the holder comes from the member that lists it. Loans without
+    // a due date (older files) get a full loan period from now; due dates for books on the shelf are dropped.
+    void reconcileHolders(){
+        long defaultDue = System.currentTimeMillis() + DueDates.LOAN_MILLIS;
+        for(Member m : members.values()){
+            for(int id : m.issuedBooks.toArray()){
+                Book b = books.get(id);
+                if(b == null) continue;
+                b.release(m.memberId);
+                if(!dueDates.has(id)) dueDates.put(id, defaultDue);
+            }
+        }
+        for(int id : dueDates.all().keySet()){
+            Book b = books.get(id);
+            if(b == null || !b.isIssued()) dueDates.remove(id);
+        }
+    }
+
+    // loans.txt line: bookId|due millis
+    private static long[] loanFromRow(CatalogLoader.Row r){ return new long[]{ r.number(), r.longNumber() }; }
+
+    // holds.txt line: bookId|memberId,memberId,... in queue order
+    private static int[] holdsFromRow(CatalogLoader.Row r){
+        int[] q = new int[8];
+        int n = 0;
+        while(n == 0 || r.hasMore()){
+            if(n == q.length) q = Arrays.copyOf(q, n * 2);
+            q[n++] = r.number();
+        }
+        return Arrays.copyOf(q, n);
     }
 
     void loadFromFile(){
         try{
-            if(Files.exists(Paths.get(booksFile))){
-                List<String> lines = Files.readAllLines(Paths.get(booksFile));
-                for(String line: lines){
-                    if(line.trim().isEmpty()) continue;
-                    Book b = Book.fromCSV(line);
-                    books.put(b.bookId, b);
-                    nextBookId = Math.max(nextBookId, b.bookId+1);
-                    categories.add(b.category);
-                }
+            if(Files.exists(booksFile)){
+                CatalogLoader loader = new CatalogLoader(booksFile);
+                for(Book b : loader.rows(Book::fromRow)) restoreBook(b);
+                if(loader.malformed() > 0) System.out.println("Skipped "+loader.malformed()+" malformed lines in "+booksFile);
             }
         } catch(IOException e){ System.out.println("Error loading books: "+e.getMessage()); }
 
         try{
-            if(Files.exists(Paths.get(membersFile))){
-                List<String> lines = Files.readAllLines(Paths.get(membersFile));
-                for(String line: lines){
-                    if(line.trim().isEmpty()) continue;
-                    Member m = Member.fromCSV(line);
-                    members.put(m.memberId, m);
-                    nextMemberId = Math.max(nextMemberId, m.memberId+1);
-                }
+            if(Files.exists(membersFile)){
+                CatalogLoader loader = new CatalogLoader(membersFile);
+                for(Member m : loader.rows(Member::fromRow)) restoreMember(m);
+                if(loader.malformed() > 0) System.out.println("Skipped "+loader.malformed()+" malformed lines in "+membersFile);
             }
         } catch(IOException e){ System.out.println("Error loading members: "+e.getMessage()); }
+
+        try{
+            if(Files.exists(loansFile)){
+                CatalogLoader loader = new CatalogLoader(loansFile);
+                for(long[] loan : loader.rows(LibraryManager::loanFromRow)) dueDates.put((int) loan[0], loan[1]);
+                if(loader.malformed() > 0) System.out.println("Skipped "+loader.malformed()+" malformed lines in "+loansFile);
+            }
+        } catch(IOException e){ System.out.println("Error loading due dates: "+e.getMessage()); }
+        reconcileHolders();
+
+        try{
+            if(Files.exists(holdsFile)){
+                CatalogLoader loader = new CatalogLoader(holdsFile);
+                for(int[] q : loader.rows(LibraryManager::holdsFromRow)){
+                    for(int i = 1; i < q.length; i++) holds.restore(q[0], q[i]);
+                }
+                if(loader.malformed() > 0) System.out.println("Skipped "+loader.malformed()+" malformed lines in "+holdsFile);
+            }
+        } catch(IOException e){ System.out.println("Error loading holds: "+e.getMessage()); }
     }
 }